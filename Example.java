@@ -47,7 +47,13 @@ public class Example {
                     try {
                         System.out.println("sending Hello world");
                         lastSendHello = nowSendHello;
-                        minHandler.queueFrame(UserDefinedFrameId, payload);
+                        // future completes when the other end acknowledges the frame
+                        minHandler.sendAsync(UserDefinedFrameId, payload).thenRun(new Runnable() {
+                            @Override
+                            public void run() {
+                                System.out.println("Hello world acknowledged");
+                            }
+                        });
                     }
                     catch (FifoFullException e) {
                         System.out.println("FIFO full, other end does not receive frames");
@@ -57,7 +63,10 @@ public class Example {
                 }
 
                 // polling to handle queues, returns list of received frames
-                ArrayList<MinFrame> frames = minHandler.poll();
+                // sleeps until data arrives, retransmit or keep-alive is due
+                // or it's time to send next Hello world, no need to yield
+                long untilNextHello = 2000 - (System.currentTimeMillis() - lastSendHello);
+                ArrayList<MinFrame> frames = minHandler.poll(Math.max(0, untilNextHello));
 
                 // print received frames
                 // you would receive 0 frames here if the other end does not send min-protocol frames
@@ -66,9 +75,6 @@ public class Example {
                     System.out.print(frame);
                     System.out.println(" payload<"+new String(frame.getPayload())+">");
                 }
-
-                // yeld
-                Thread.sleep(50);
             }
         } catch (Exception e) { e.printStackTrace(); }
     }
@@ -1,4 +1,8 @@
+import java.nio.ByteBuffer;
+
 import com.fazecast.jSerialComm.SerialPort;
+import com.fazecast.jSerialComm.SerialPortDataListener;
+import com.fazecast.jSerialComm.SerialPortEvent;
 
 import pl.skifosoft.minprotocol.MinSerialInterface;
 
@@ -11,6 +15,9 @@ public class SerialInterface implements MinSerialInterface {
 
     private SerialPort comPort;
 
+    // used to write direct buffers, jSerialComm accepts only arrays
+    private final byte[] writeBuffer = new byte[4096];
+
     // for specifics of this implementation see jSerialComm
     // https://fazecast.github.io/jSerialComm/
 
@@ -28,14 +35,48 @@ public class SerialInterface implements MinSerialInterface {
 
     @Override
     public void serialWrite(byte[] data) {
-        int ret = comPort.writeBytes(data, data.length);
+        writeBytes(data, 0, data.length);
+    }
+
+    @Override
+    public void serialWrite(ByteBuffer data) {
+        if (data.hasArray()) {
+            writeBytes(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+        } else {
+            while (data.hasRemaining()) {
+                int len = Math.min(data.remaining(), writeBuffer.length);
+                data.get(writeBuffer, 0, len);
+                writeBytes(writeBuffer, 0, len);
+            }
+        }
+    }
+
+    private void writeBytes(byte[] data, int offset, int length) {
+        int ret = comPort.writeBytes(data, length, offset);
         if (ret == -1)
             throw new SerialPortException("write failed");
-        if (ret != data.length) {
-            throw new SerialPortException("written: "+ret+", but expected: "+data.length);
+        if (ret != length) {
+            throw new SerialPortException("written: "+ret+", but expected: "+length);
         }
     }
 
+    @Override
+    public boolean setDataListener(final Runnable listener) {
+        comPort.removeDataListener();
+        return comPort.addDataListener(new SerialPortDataListener() {
+            @Override
+            public int getListeningEvents() {
+                return SerialPort.LISTENING_EVENT_DATA_AVAILABLE;
+            }
+
+            @Override
+            public void serialEvent(SerialPortEvent event) {
+                listener.run();
+            }
+        });
+    }
+
     @Override
     public byte[] serialReadAll() {
 
@@ -0,0 +1,92 @@
+package pl.skifosoft.minprotocol.bench;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pl.skifosoft.minprotocol.FifoFullException;
+import pl.skifosoft.minprotocol.MinException;
+import pl.skifosoft.minprotocol.MinFrame;
+import pl.skifosoft.minprotocol.MinTransport;
+import pl.skifosoft.minprotocol.MinTransportConfig;
+
+/**
+ * CPU cost of payload compression, telemetry frames sent over in-memory link as in LoopbackBenchmark.
+ * Score is time per delivered frame, compressed minus "none" gives compression and decompression
+ * together. Gain in delivered bytes per second on a slow link is reported by LinkScenarioRunner
+ * ("telemetry deflate" rows).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@OperationsPerInvocation(CompressionBenchmark.BATCH)
+public class CompressionBenchmark {
+
+    static final int BATCH = 64;
+
+    // # none, previous payload only, previous payload and preset dictionary
+    @Param({ "none", "delta", "dictionary" })
+    String compression;
+
+    private MinTransport sender;
+    private MinTransport receiver;
+    private byte[][] payloads;
+    private int next_payload = 0;
+
+    @Setup
+    public void setup() {
+        final LoopbackSerialInterface[] link = LoopbackSerialInterface.pair();
+        final MinTransportConfig.Builder config = MinTransportConfig.builder()
+            .maxWindowSize(8)
+            .rxWindowSize(8)
+            .transportFifoSize(BATCH)
+            .retransmitTimeout(1000);
+        if (compression.equals("delta")) {
+            config.compression(1, new byte[0]);
+        } else if (compression.equals("dictionary")) {
+            config.compression(1, Payloads.telemetryDictionary());
+        }
+        sender = new MinTransport(link[0], config.build());
+        receiver = new MinTransport(link[1], config.build());
+        payloads = Payloads.telemetry(new Random(42), 4096);
+    }
+
+    @Benchmark
+    public int deliverBatch() throws MinException {
+        int queued = 0;
+        int received = 0;
+        while (received < BATCH) {
+            while (queued < BATCH) {
+                try {
+                    sender.queueFrame(1, payloads[next_payload]);
+                    next_payload = (next_payload + 1) % payloads.length;
+                    queued++;
+                } catch (FifoFullException e) {
+                    break;
+                }
+            }
+            sender.poll();
+            final ArrayList<MinFrame> frames = receiver.poll();
+            received += frames.size();
+        }
+        // # let the last ACK reach the sender, so FIFO is empty for next batch
+        sender.poll();
+        return received;
+    }
+}
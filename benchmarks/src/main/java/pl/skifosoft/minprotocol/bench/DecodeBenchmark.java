@@ -0,0 +1,81 @@
+package pl.skifosoft.minprotocol.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pl.skifosoft.minprotocol.MinFrameDecoder;
+import pl.skifosoft.minprotocol.MinFrameEncoder;
+
+/**
+ * Decoding throughput of a stream of frames, clean or with corrupted bytes.
+ * Score is in frames, corrupted frames included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@OperationsPerInvocation(DecodeBenchmark.FRAMES)
+public class DecodeBenchmark {
+
+    static final int FRAMES = 256;
+
+    @Param({ "16", "64", "255" })
+    int payloadSize;
+
+    @Param({ "0.0", "0.01" })
+    double headerDensity;
+
+    @Param({ "0.0", "0.001" })
+    double byteErrorRate;
+
+    private byte[] stream;
+    private int decoded;
+    private final MinFrameDecoder decoder = new MinFrameDecoder(new MinFrameDecoder.Listener() {
+        @Override
+        public void frameDecoded(byte idControl, int seq, byte[] payload, int length) {
+            decoded++;
+        }
+    });
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42);
+        final MinFrameEncoder encoder = new MinFrameEncoder();
+        final ByteBuffer buf = ByteBuffer.allocate(FRAMES * MinFrameEncoder.MAX_FRAME_SIZE);
+        for (int i = 0; i < FRAMES; i++) {
+            final byte[] payload = Payloads.random(random, payloadSize, headerDensity);
+            encoder.encode(buf, (byte) 0x85, i, payload, 0, payload.length);
+        }
+        stream = new byte[buf.position()];
+        buf.flip();
+        buf.get(stream);
+        for (int i = 0; i < stream.length; i++) {
+            if (random.nextDouble() < byteErrorRate) {
+                stream[i] ^= (byte) (1 + random.nextInt(255));
+            }
+        }
+    }
+
+    @Benchmark
+    public int decodeStream() {
+        decoded = 0;
+        decoder.decode(stream, 0, stream.length);
+        return decoded;
+    }
+}
@@ -0,0 +1,57 @@
+package pl.skifosoft.minprotocol.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pl.skifosoft.minprotocol.MinFrameEncoder;
+
+/**
+ * Frame encoding throughput across payload sizes and 0xaa densities.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class EncodeBenchmark {
+
+    @Param({ "0", "16", "64", "255" })
+    int payloadSize;
+
+    @Param({ "0.0", "0.01", "0.5" })
+    double headerDensity;
+
+    @Param({ "heap", "direct" })
+    String buffer;
+
+    private final MinFrameEncoder encoder = new MinFrameEncoder();
+    private byte[] payload;
+    private ByteBuffer dst;
+
+    @Setup
+    public void setup() {
+        payload = Payloads.random(new Random(42), payloadSize, headerDensity);
+        dst = "direct".equals(buffer) ? ByteBuffer.allocateDirect(MinFrameEncoder.MAX_FRAME_SIZE)
+                                      : ByteBuffer.allocate(MinFrameEncoder.MAX_FRAME_SIZE);
+    }
+
+    @Benchmark
+    public int encodeTransportFrame() {
+        dst.clear();
+        return encoder.encode(dst, (byte) 0x85, 7, payload, 0, payload.length);
+    }
+}
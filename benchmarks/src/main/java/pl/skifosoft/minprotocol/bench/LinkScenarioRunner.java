@@ -0,0 +1,251 @@
+package pl.skifosoft.minprotocol.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import pl.skifosoft.minprotocol.FifoFullException;
+import pl.skifosoft.minprotocol.MinException;
+import pl.skifosoft.minprotocol.MinFrame;
+import pl.skifosoft.minprotocol.MinTransport;
+import pl.skifosoft.minprotocol.MinTransportConfig;
+
+/**
+ * Runs one transport sending to another over SimulatedLink on virtual time and reports
+ * goodput, retransmit ratio and delivery latency for a set of link scenarios.
+ * <p>
+ * Sender keeps its transport FIFO full, receiver only acknowledges. Both are polled
+ * every pollInterval of virtual time, the way firmware main loop would do.
+ * Latency is measured from queueFrame() to delivery by receiver's poll().
+ * <p>
+ * Usage: LinkScenarioRunner [duration seconds, default 3600] [seed, default 1]
+ */
+public final class LinkScenarioRunner {
+
+    private static final int header_size = 12; // # send time and frame number in payload
+
+    /**
+     * Outcome of a single run.
+     */
+    public static final class Result {
+
+        public final String name;
+        public final long durationNs;
+        public final long framesDelivered;
+        public final long bytesDelivered;
+        public final long transportFramesSent;
+        public final long orderErrors;
+        public final long latencyP50Ns;
+        public final long latencyP99Ns;
+        public final int baudRate;
+
+        Result(final String name, final long durationNs, final long framesDelivered, final long bytesDelivered,
+               final long transportFramesSent, final long orderErrors, final long[] latencies, final int latencyCount,
+               final int baudRate) {
+            this.name = name;
+            this.durationNs = durationNs;
+            this.framesDelivered = framesDelivered;
+            this.bytesDelivered = bytesDelivered;
+            this.transportFramesSent = transportFramesSent;
+            this.orderErrors = orderErrors;
+            Arrays.sort(latencies, 0, latencyCount);
+            this.latencyP50Ns = percentile(latencies, latencyCount, 50);
+            this.latencyP99Ns = percentile(latencies, latencyCount, 99);
+            this.baudRate = baudRate;
+        }
+
+        /**
+         * @return delivered payload bytes per second of virtual time
+         */
+        public double goodput() {
+            return bytesDelivered / (durationNs / 1e9);
+        }
+
+        /**
+         * @return goodput as a fraction of raw line capacity
+         */
+        public double efficiency() {
+            return goodput() / (baudRate / 10.0);
+        }
+
+        /**
+         * @return retransmitted frames per delivered frame
+         */
+        public double retransmitRatio() {
+            return framesDelivered == 0 ? 0 : (transportFramesSent - framesDelivered) / (double) framesDelivered;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-28s %10.0f %6.1f%% %9.4f %9.1f %9.1f %7d", name, goodput(), 100 * efficiency(),
+                                 retransmitRatio(), latencyP50Ns / 1e6, latencyP99Ns / 1e6, orderErrors);
+        }
+
+        private static long percentile(final long[] sorted, final int count, final int p) {
+            return count == 0 ? 0 : sorted[(int) ((count - 1) * (long) p / 100)];
+        }
+    }
+
+    private LinkScenarioRunner() {
+    }
+
+    /**
+     * @param name scenario name for the report
+     * @param link link parameters
+     * @param baudRate baud rate set in link, for efficiency only
+     * @param config transport configuration, clock is replaced by virtual one
+     * @param payloadSize payload length, at least 12
+     * @param durationMs virtual time to run for
+     * @param pollIntervalUs virtual time between polls
+     * @return result
+     * @throws MinException
+     */
+    public static Result run(final String name, final SimulatedLink.Builder link, final int baudRate,
+                             final MinTransportConfig.Builder config, final int payloadSize, final long durationMs,
+                             final long pollIntervalUs) throws MinException {
+        if (payloadSize < header_size)
+            throw new IllegalArgumentException("payload size: "+payloadSize+", min "+header_size);
+        return run(name, link, baudRate, config, new byte[][] { Payloads.random(new Random(42), payloadSize, 0.01) },
+                   durationMs, pollIntervalUs);
+    }
+
+    /**
+     * As run() with random payload, sending given payloads in turn, e.g. telemetry records
+     * to measure compression. First 12 bytes of each are overwritten.
+     *
+     * @param name scenario name for the report
+     * @param link link parameters
+     * @param baudRate baud rate set in link, for efficiency only
+     * @param config transport configuration, clock is replaced by virtual one
+     * @param payloads payloads sent in turn, each at least 12 bytes long
+     * @param durationMs virtual time to run for
+     * @param pollIntervalUs virtual time between polls
+     * @return result
+     * @throws MinException
+     */
+    public static Result run(final String name, final SimulatedLink.Builder link, final int baudRate,
+                             final MinTransportConfig.Builder config, final byte[][] payloads, final long durationMs,
+                             final long pollIntervalUs) throws MinException {
+        for (final byte[] payload : payloads) {
+            if (payload.length < header_size)
+                throw new IllegalArgumentException("payload size: "+payload.length+", min "+header_size);
+        }
+
+        final VirtualClock clock = new VirtualClock();
+        final SimulatedLink simulated = link.build(clock);
+        final MinTransportConfig transport_config = config.clock(clock).build();
+        final MinTransport sender = new MinTransport(simulated.endA(), transport_config);
+        final MinTransport receiver = new MinTransport(simulated.endB(), transport_config);
+
+        final long duration_ns = TimeUnit.MILLISECONDS.toNanos(durationMs);
+        final long poll_interval_ns = TimeUnit.MICROSECONDS.toNanos(pollIntervalUs);
+
+        long[] latencies = new long[1024];
+        int latency_count = 0;
+        int next_number = 0;
+        int expected_number = 0;
+        long frames_delivered = 0;
+        long bytes_delivered = 0;
+        long order_errors = 0;
+
+        while (clock.nanoTime() < duration_ns) {
+            for (;;) {
+                final byte[] payload = payloads[next_number % payloads.length];
+                final ByteBuffer header = ByteBuffer.wrap(payload);
+                header.putLong(0, clock.nanoTime());
+                header.putInt(8, next_number);
+                try {
+                    sender.queueFrame(1, payload);
+                } catch (FifoFullException e) {
+                    break;
+                }
+                next_number++;
+            }
+            sender.poll();
+
+            for (final MinFrame frame : receiver.poll()) {
+                final ByteBuffer received = ByteBuffer.wrap(frame.getPayload(), 0, frame.getLength());
+                final int number = received.getInt(8);
+                if (number != expected_number) {
+                    order_errors++;
+                }
+                expected_number = number + 1;
+                if (latency_count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, latency_count * 2);
+                }
+                latencies[latency_count++] = clock.nanoTime() - received.getLong(0);
+                frames_delivered++;
+                bytes_delivered += frame.getLength();
+            }
+
+            clock.advance(poll_interval_ns);
+        }
+
+        return new Result(name, duration_ns, frames_delivered, bytes_delivered,
+                          simulated.endA().transportFramesSent(), order_errors, latencies, latency_count, baudRate);
+    }
+
+    public static void main(String[] args) throws MinException {
+
+        final long duration_s = args.length > 0 ? Long.parseLong(args[0]) : 3600;
+        final long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        final long duration_ms = TimeUnit.SECONDS.toMillis(duration_s);
+        final int payload_size = 64;
+        final long poll_interval_us = 1000;
+
+        System.out.println("virtual time "+duration_s+" s, seed "+seed+", payload "+payload_size+" B, poll every "
+                           +poll_interval_us+" us");
+        System.out.println(String.format("%-28s %10s %7s %9s %9s %9s %7s", "scenario", "goodput B/s", "eff",
+                                         "rtx/frame", "p50 ms", "p99 ms", "order"));
+
+        final long start = System.nanoTime();
+        // # payload_size long records, compressed against preset dictionary and previous record
+        final byte[][] telemetry = Payloads.telemetry(new Random(42), 4096);
+        final Object[][] scenarios = {
+            // # default 50 ms retransmit timeout
+            { "115200 clean rto 50 ms", SimulatedLink.builder(), 115200, window(8) },
+            { "115200 clean", SimulatedLink.builder(), 115200, window(8).retransmitTimeout(100) },
+            { "115200 ber 1e-5", SimulatedLink.builder().bitErrorRate(1e-5), 115200,
+              window(8).retransmitTimeout(100) },
+            { "115200 ber 1e-4", SimulatedLink.builder().bitErrorRate(1e-4), 115200,
+              window(8).retransmitTimeout(100) },
+            { "115200 ber 1e-4 delayed ack", SimulatedLink.builder().bitErrorRate(1e-4), 115200,
+              window(8).retransmitTimeout(100).delayedAck(true).ackDelay(5) },
+            { "115200 drop 1e-4", SimulatedLink.builder().byteDropRate(1e-4), 115200,
+              window(8).retransmitTimeout(100) },
+            { "115200 burst 1e-5 x 64 B", SimulatedLink.builder().burstLoss(1e-5, 64), 115200,
+              window(8).retransmitTimeout(100) },
+            // # 50 ms retransmit timeout is shorter than a frame takes at 9600 baud, most frames are sent twice
+            { "9600 50 ms", SimulatedLink.builder().baudRate(9600).propagationDelay(50_000), 9600, window(8) },
+            { "9600 50 ms adaptive", SimulatedLink.builder().baudRate(9600).propagationDelay(50_000), 9600,
+              window(32).adaptiveWindow(true).adaptiveRetransmitTimeout(true) },
+            { "9600 50 ms ber 1e-5 adaptive", SimulatedLink.builder().baudRate(9600).propagationDelay(50_000)
+              .bitErrorRate(1e-5), 9600, window(32).adaptiveWindow(true).adaptiveRetransmitTimeout(true) },
+            { "9600 50 ms telemetry adaptive", SimulatedLink.builder().baudRate(9600).propagationDelay(50_000), 9600,
+              window(32).adaptiveWindow(true).adaptiveRetransmitTimeout(true), telemetry },
+            { "9600 50 ms telemetry deflate", SimulatedLink.builder().baudRate(9600).propagationDelay(50_000), 9600,
+              window(32).adaptiveWindow(true).adaptiveRetransmitTimeout(true)
+              .compression(1, Payloads.telemetryDictionary()), telemetry },
+        };
+        for (final Object[] scenario : scenarios) {
+            final SimulatedLink.Builder link = ((SimulatedLink.Builder) scenario[1]).seed(seed);
+            final int baud = (Integer) scenario[2];
+            link.baudRate(baud);
+            final MinTransportConfig.Builder config = (MinTransportConfig.Builder) scenario[3];
+            if (scenario.length > 4) {
+                System.out.println(run((String) scenario[0], link, baud, config, (byte[][]) scenario[4],
+                                       duration_ms, poll_interval_us));
+            } else {
+                System.out.println(run((String) scenario[0], link, baud, config, payload_size, duration_ms,
+                                       poll_interval_us));
+            }
+        }
+        System.out.println(String.format("wall time %.1f s", (System.nanoTime() - start) / 1e9));
+    }
+
+    // # FIFO no longer than window, so latency is not dominated by queueing
+    private static MinTransportConfig.Builder window(final int size) {
+        return MinTransportConfig.builder().maxWindowSize(size).rxWindowSize(size).transportFifoSize(size);
+    }
+}
@@ -0,0 +1,86 @@
+package pl.skifosoft.minprotocol.bench;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pl.skifosoft.minprotocol.FifoFullException;
+import pl.skifosoft.minprotocol.MinException;
+import pl.skifosoft.minprotocol.MinFrame;
+import pl.skifosoft.minprotocol.MinTransport;
+import pl.skifosoft.minprotocol.MinTransportConfig;
+
+/**
+ * End-to-end throughput of two transports connected by in-memory link, driven by one thread.
+ * Score is in delivered frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@OperationsPerInvocation(LoopbackBenchmark.BATCH)
+public class LoopbackBenchmark {
+
+    static final int BATCH = 64;
+
+    @Param({ "16", "255" })
+    int payloadSize;
+
+    @Param({ "8", "32" })
+    int windowSize;
+
+    private MinTransport sender;
+    private MinTransport receiver;
+    private byte[] payload;
+
+    @Setup
+    public void setup() {
+        final LoopbackSerialInterface[] link = LoopbackSerialInterface.pair();
+        final MinTransportConfig config = MinTransportConfig.builder()
+            .maxWindowSize(windowSize)
+            .rxWindowSize(windowSize)
+            .transportFifoSize(BATCH)
+            .retransmitTimeout(1000)
+            .build();
+        sender = new MinTransport(link[0], config);
+        receiver = new MinTransport(link[1], config);
+        payload = Payloads.random(new Random(42), payloadSize, 0.01);
+    }
+
+    @Benchmark
+    public int deliverBatch() throws MinException {
+        int queued = 0;
+        int received = 0;
+        while (received < BATCH) {
+            while (queued < BATCH) {
+                try {
+                    sender.queueFrame(1, payload);
+                    queued++;
+                } catch (FifoFullException e) {
+                    break;
+                }
+            }
+            sender.poll();
+            final ArrayList<MinFrame> frames = receiver.poll();
+            received += frames.size();
+        }
+        // # let the last ACK reach the sender, so FIFO is empty for next batch
+        sender.poll();
+        return received;
+    }
+}
@@ -0,0 +1,75 @@
+package pl.skifosoft.minprotocol.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import pl.skifosoft.minprotocol.MinSerialInterface;
+
+/**
+ * In-memory serial link, bytes written to one end are read from the other one.
+ * Thread safe, each end may be driven by a different thread.
+ */
+public final class LoopbackSerialInterface implements MinSerialInterface {
+
+    private static final byte[] emptyBuffer = new byte[0];
+
+    private LoopbackSerialInterface peer;
+    private byte[] buffer = new byte[64 * 1024];
+    private int length = 0;
+    private volatile Runnable listener;
+
+    private LoopbackSerialInterface() {
+    }
+
+    /**
+     * @return two connected ends of the link
+     */
+    public static LoopbackSerialInterface[] pair() {
+        final LoopbackSerialInterface a = new LoopbackSerialInterface();
+        final LoopbackSerialInterface b = new LoopbackSerialInterface();
+        a.peer = b;
+        b.peer = a;
+        return new LoopbackSerialInterface[] { a, b };
+    }
+
+    @Override
+    public void serialWrite(byte[] data) {
+        serialWrite(ByteBuffer.wrap(data));
+    }
+
+    @Override
+    public void serialWrite(ByteBuffer data) {
+        peer.receive(data);
+    }
+
+    @Override
+    public synchronized byte[] serialReadAll() {
+        if (length == 0) {
+            return emptyBuffer;
+        }
+        final byte[] ret = Arrays.copyOf(buffer, length);
+        length = 0;
+        return ret;
+    }
+
+    @Override
+    public boolean setDataListener(Runnable listener) {
+        this.listener = listener;
+        return true;
+    }
+
+    private void receive(ByteBuffer data) {
+        synchronized (this) {
+            final int n = data.remaining();
+            if (length + n > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + n));
+            }
+            data.get(buffer, length, n);
+            length += n;
+        }
+        final Runnable l = listener;
+        if (l != null) {
+            l.run();
+        }
+    }
+}
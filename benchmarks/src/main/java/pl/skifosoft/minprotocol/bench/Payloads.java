@@ -0,0 +1,87 @@
+package pl.skifosoft.minprotocol.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Reproducible payloads for benchmarks.
+ */
+final class Payloads {
+
+    static final int TELEMETRY_SIZE = 64;
+
+    private Payloads() {
+    }
+
+    /**
+     * @param random seeded generator
+     * @param size payload length
+     * @param headerDensity probability of each byte being 0xaa
+     * @return payload
+     */
+    static byte[] random(Random random, int size, double headerDensity) {
+        final byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            if (random.nextDouble() < headerDensity) {
+                payload[i] = (byte) 0xaa;
+            } else {
+                byte b;
+                do {
+                    b = (byte) random.nextInt(256);
+                } while (b == (byte) 0xaa);
+                payload[i] = b;
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * Consecutive telemetry records of a sensor node: timestamp, record number, device id,
+     * 12 slowly changing 16-bit readings, rarely changing status and firmware version.
+     *
+     * @param random seeded generator
+     * @param count number of records
+     * @return records, TELEMETRY_SIZE bytes each
+     */
+    static byte[][] telemetry(Random random, int count) {
+        final byte[][] records = new byte[count][];
+        final short[] readings = new short[12];
+        for (int c = 0; c < readings.length; c++) {
+            readings[c] = (short) (1000 * c + random.nextInt(100));
+        }
+        int status = 0x0101;
+        final byte[] version = Arrays.copyOf("fw 1.4.2 rev b".getBytes(StandardCharsets.US_ASCII), 16);
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer record = ByteBuffer.allocate(TELEMETRY_SIZE);
+            record.putLong(1700000000000L + 100L * i);
+            record.putInt(i);
+            record.putInt(0x00c0ffee);
+            record.put("TLM1".getBytes(StandardCharsets.US_ASCII));
+            for (int c = 0; c < readings.length; c++) {
+                readings[c] += random.nextInt(5) - 2;
+                record.putShort(readings[c]);
+            }
+            if (random.nextDouble() < 0.01) {
+                status ^= 1 << random.nextInt(8);
+            }
+            record.putInt(status);
+            record.put(version);
+            records[i] = record.array();
+        }
+        return records;
+    }
+
+    /**
+     * @return preset compression dictionary for telemetry(), records of another node
+     */
+    static byte[] telemetryDictionary() {
+        final byte[][] samples = telemetry(new Random(7), 8);
+        final byte[] dictionary = new byte[samples.length * TELEMETRY_SIZE];
+        for (int i = 0; i < samples.length; i++) {
+            System.arraycopy(samples[i], 0, dictionary, i * TELEMETRY_SIZE, TELEMETRY_SIZE);
+        }
+        return dictionary;
+    }
+}
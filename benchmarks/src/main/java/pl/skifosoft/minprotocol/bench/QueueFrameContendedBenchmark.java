@@ -0,0 +1,76 @@
+package pl.skifosoft.minprotocol.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pl.skifosoft.minprotocol.FifoFullException;
+import pl.skifosoft.minprotocol.MinException;
+import pl.skifosoft.minprotocol.MinTransport;
+import pl.skifosoft.minprotocol.MinTransportConfig;
+
+/**
+ * Many producer threads calling queueFrame() on one transport, while single driver
+ * thread polls both ends of in-memory link. Change number of producers with -tg, e.g. -tg 8,1.
+ * Score of queueFrame is in accepted frames, attempts rejected with full FIFO are retried.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class QueueFrameContendedBenchmark {
+
+    private MinTransport sender;
+    private MinTransport receiver;
+    private byte[] payload;
+
+    @Setup
+    public void setup() {
+        final LoopbackSerialInterface[] link = LoopbackSerialInterface.pair();
+        final MinTransportConfig config = MinTransportConfig.builder()
+            .maxWindowSize(MinTransportConfig.MAX_WINDOW)
+            .rxWindowSize(MinTransportConfig.MAX_WINDOW)
+            .transportFifoSize(1024)
+            .retransmitTimeout(1000)
+            .build();
+        sender = new MinTransport(link[0], config);
+        receiver = new MinTransport(link[1], config);
+        payload = Payloads.random(new Random(42), 16, 0.0);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(4)
+    public void queueFrame() throws MinException {
+        for (;;) {
+            try {
+                sender.queueFrame(1, payload);
+                return;
+            } catch (FifoFullException e) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public int drive() {
+        sender.poll();
+        return receiver.poll().size();
+    }
+}
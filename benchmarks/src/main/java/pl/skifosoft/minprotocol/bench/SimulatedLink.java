@@ -0,0 +1,372 @@
+package pl.skifosoft.minprotocol.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import pl.skifosoft.minprotocol.MinFrameDecoder;
+import pl.skifosoft.minprotocol.MinSerialInterface;
+
+/**
+ * Serial wire between two transports, running on virtual clock.
+ * <p>
+ * Bytes are serialized one after another at the given baud rate (8N1, 10 bits per byte)
+ * and arrive after propagation delay. Bytes may be lost independently, in bursts
+ * (Gilbert-Elliott model, every byte written in bad state is lost), and have their bits
+ * flipped independently. Impairments come from a seeded generator per direction,
+ * so the same seed and the same traffic give exactly the same run.
+ * <p>
+ * Each end has a transmit buffer of limited size, as UART driver has. serialWrite() blocks,
+ * advancing the virtual clock, until bytes not yet sent fit in it, so a sender can not
+ * queue more on the wire than a real port would let it.
+ * <p>
+ * Not thread safe, both ends must be driven by one thread, by poll() rather than poll(long).
+ */
+public final class SimulatedLink {
+
+    private static final byte[] emptyBuffer = new byte[0];
+
+    private final VirtualClock clock;
+    private final End end_a;
+    private final End end_b;
+
+    private SimulatedLink(final Builder builder, final VirtualClock clock) {
+        this.clock = clock;
+        final Line a_to_b = new Line(builder, new Random(builder.seed));
+        final Line b_to_a = new Line(builder, new Random(builder.seed + 1));
+        end_a = new End(a_to_b, b_to_a);
+        end_b = new End(b_to_a, a_to_b);
+    }
+
+    /**
+     * @return builder of ideal 115200 baud link
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return end for the first transport
+     */
+    public End endA() {
+        return end_a;
+    }
+
+    /**
+     * @return end for the second transport
+     */
+    public End endB() {
+        return end_b;
+    }
+
+    /**
+     * One end of the link, with statistics of bytes it writes.
+     */
+    public final class End implements MinSerialInterface {
+
+        private final Line out;
+        private final Line in;
+
+        private End(final Line out, final Line in) {
+            this.out = out;
+            this.in = in;
+        }
+
+        @Override
+        public void serialWrite(byte[] data) {
+            serialWrite(ByteBuffer.wrap(data));
+        }
+
+        @Override
+        public void serialWrite(ByteBuffer data) {
+            final long now_ns = clock.nanoTime();
+            clock.advance(out.write(data, now_ns) - now_ns);
+        }
+
+        @Override
+        public byte[] serialReadAll() {
+            return in.read(clock.nanoTime());
+        }
+
+        /**
+         * @return bytes written by this end
+         */
+        public long bytesSent() {
+            return out.bytes_sent;
+        }
+
+        /**
+         * @return bytes written by this end and lost on the way
+         */
+        public long bytesLost() {
+            return out.bytes_lost;
+        }
+
+        /**
+         * @return bytes written by this end which arrived with flipped bits
+         */
+        public long bytesCorrupted() {
+            return out.bytes_corrupted;
+        }
+
+        /**
+         * @return transport frames (other than ACK and RESET) written by this end, retransmits included
+         */
+        public long transportFramesSent() {
+            return out.transport_frames_sent;
+        }
+    }
+
+    // # one direction of the link
+    private static final class Line {
+
+        private final long byte_time_ns;
+        private final long tx_buffer_ns; // # time to send a full transmit buffer
+        private final long delay_ns;
+        private final double bit_error_rate;
+        private final double byte_drop_rate;
+        private final double burst_enter_rate;
+        private final double burst_exit_rate;
+        private final Random random;
+
+        // # bytes on the wire, ring ordered by arrival time
+        private byte[] data = new byte[4096];
+        private long[] arrival_ns = new long[4096];
+        private int head = 0;
+        private int count = 0;
+        private long line_free_ns = Long.MIN_VALUE;
+
+        // # trials left until next impairment event
+        private long bits_to_error;
+        private long bytes_to_drop;
+        private long bytes_to_state_change;
+        private boolean burst = false;
+
+        long bytes_sent = 0;
+        long bytes_lost = 0;
+        long bytes_corrupted = 0;
+        long transport_frames_sent = 0;
+
+        // # counts frames as written, before impairments
+        private final MinFrameDecoder tap = new MinFrameDecoder(new MinFrameDecoder.Listener() {
+            @Override
+            public void frameDecoded(byte idControl, int seq, byte[] payload, int length) {
+                if ((idControl & 0x80) != 0 && idControl != (byte) 0xff && idControl != (byte) 0xfe) {
+                    transport_frames_sent++;
+                }
+            }
+        });
+
+        Line(final Builder builder, final Random random) {
+            this.byte_time_ns = 10_000_000_000L / builder.baud_rate;
+            this.tx_buffer_ns = builder.tx_buffer_size * byte_time_ns;
+            this.delay_ns = builder.propagation_delay_ns;
+            this.bit_error_rate = builder.bit_error_rate;
+            this.byte_drop_rate = builder.byte_drop_rate;
+            this.burst_enter_rate = builder.burst_enter_rate;
+            this.burst_exit_rate = builder.burst_exit_rate;
+            this.random = random;
+            bits_to_error = geometric(bit_error_rate);
+            bytes_to_drop = geometric(byte_drop_rate);
+            bytes_to_state_change = geometric(burst_enter_rate);
+        }
+
+        // # returns time when the writer is let go, last byte written fits in transmit buffer then
+        long write(final ByteBuffer src, final long now_ns) {
+            tap.decode(src.duplicate());
+            long t = Math.max(now_ns, line_free_ns);
+            while (src.hasRemaining()) {
+                final byte b = src.get();
+                t += byte_time_ns;
+                bytes_sent++;
+                if (lost()) {
+                    bytes_lost++;
+                    continue;
+                }
+                enqueue(corrupt(b), t + delay_ns);
+            }
+            line_free_ns = t;
+            return Math.max(now_ns, t - tx_buffer_ns);
+        }
+
+        byte[] read(final long now_ns) {
+            int n = 0;
+            while (n < count && arrival_ns[(head + n) & (data.length - 1)] <= now_ns) {
+                n++;
+            }
+            if (n == 0) {
+                return emptyBuffer;
+            }
+            final byte[] ret = new byte[n];
+            for (int i = 0; i < n; i++) {
+                ret[i] = data[(head + i) & (data.length - 1)];
+            }
+            head = (head + n) & (data.length - 1);
+            count -= n;
+            return ret;
+        }
+
+        private void enqueue(final byte b, final long arrival) {
+            if (count == data.length) {
+                final byte[] new_data = new byte[data.length * 2];
+                final long[] new_arrival = new long[data.length * 2];
+                for (int i = 0; i < count; i++) {
+                    new_data[i] = data[(head + i) & (data.length - 1)];
+                    new_arrival[i] = arrival_ns[(head + i) & (data.length - 1)];
+                }
+                data = new_data;
+                arrival_ns = new_arrival;
+                head = 0;
+            }
+            final int tail = (head + count) & (data.length - 1);
+            data[tail] = b;
+            arrival_ns[tail] = arrival;
+            count++;
+        }
+
+        private boolean lost() {
+            if (bytes_to_state_change-- == 0) {
+                burst = !burst;
+                bytes_to_state_change = geometric(burst ? burst_exit_rate : burst_enter_rate);
+            }
+            if (burst) {
+                return true;
+            }
+            if (bytes_to_drop-- == 0) {
+                bytes_to_drop = geometric(byte_drop_rate);
+                return true;
+            }
+            return false;
+        }
+
+        private byte corrupt(final byte b) {
+            if (bits_to_error >= 8) {
+                bits_to_error -= 8;
+                return b;
+            }
+            int value = b;
+            long bit = bits_to_error;
+            while (bit < 8) {
+                value ^= 1 << bit;
+                bit += 1 + geometric(bit_error_rate);
+            }
+            bits_to_error = bit - 8;
+            bytes_corrupted++;
+            return (byte) value;
+        }
+
+        // # number of trials before next event of given probability
+        private long geometric(final double p) {
+            if (p <= 0) {
+                return Long.MAX_VALUE / 2;
+            }
+            if (p >= 1) {
+                return 0;
+            }
+            final double trials = Math.log(1 - random.nextDouble()) / Math.log1p(-p);
+            return (long) Math.min(trials, Long.MAX_VALUE / 2);
+        }
+    }
+
+    public static final class Builder {
+
+        private int baud_rate = 115200;
+        private int tx_buffer_size = 256;
+        private long propagation_delay_ns = 0;
+        private double bit_error_rate = 0;
+        private double byte_drop_rate = 0;
+        private double burst_enter_rate = 0;
+        private double burst_exit_rate = 1;
+        private long seed = 1;
+
+        private Builder() {
+        }
+
+        /**
+         * @param baud line speed in bits per second, 10 bits per byte
+         * @return this builder
+         */
+        public Builder baudRate(final int baud) {
+            if (baud < 10)
+                throw new IllegalArgumentException("baud rate: "+baud);
+            baud_rate = baud;
+            return this;
+        }
+
+        /**
+         * @param bytes transmit buffer of each end, default is 256 bytes
+         * @return this builder
+         */
+        public Builder txBufferSize(final int bytes) {
+            if (bytes < 1)
+                throw new IllegalArgumentException("tx buffer size: "+bytes);
+            tx_buffer_size = bytes;
+            return this;
+        }
+
+        /**
+         * @param delayUs time from the end of byte transmission to its arrival, in microseconds
+         * @return this builder
+         */
+        public Builder propagationDelay(final long delayUs) {
+            if (delayUs < 0)
+                throw new IllegalArgumentException("propagation delay: "+delayUs);
+            propagation_delay_ns = delayUs * 1000;
+            return this;
+        }
+
+        /**
+         * @param rate probability of each bit being flipped
+         * @return this builder
+         */
+        public Builder bitErrorRate(final double rate) {
+            bit_error_rate = check_rate(rate);
+            return this;
+        }
+
+        /**
+         * @param rate probability of each byte being lost
+         * @return this builder
+         */
+        public Builder byteDropRate(final double rate) {
+            byte_drop_rate = check_rate(rate);
+            return this;
+        }
+
+        /**
+         * @param enterRate probability of burst starting at each byte
+         * @param meanLength mean number of bytes lost in a burst
+         * @return this builder
+         */
+        public Builder burstLoss(final double enterRate, final double meanLength) {
+            if (meanLength < 1)
+                throw new IllegalArgumentException("mean burst length: "+meanLength);
+            burst_enter_rate = check_rate(enterRate);
+            burst_exit_rate = 1 / meanLength;
+            return this;
+        }
+
+        /**
+         * @param seed seed of impairment generators, default is 1
+         * @return this builder
+         */
+        public Builder seed(final long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * @param clock virtual clock shared with transports on both ends
+         * @return new link
+         */
+        public SimulatedLink build(final VirtualClock clock) {
+            return new SimulatedLink(this, clock);
+        }
+
+        private static double check_rate(final double rate) {
+            if (!(rate >= 0 && rate <= 1))
+                throw new IllegalArgumentException("rate: "+rate);
+            return rate;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package pl.skifosoft.minprotocol.bench;
+
+import pl.skifosoft.minprotocol.MinClock;
+
+/**
+ * Clock advanced explicitly by the simulation, starts at 0.
+ */
+public final class VirtualClock implements MinClock {
+
+    private long now_ns = 0;
+
+    @Override
+    public long nanoTime() {
+        return now_ns;
+    }
+
+    /**
+     * @param ns time to move forward by, in nanoseconds
+     */
+    public void advance(final long ns) {
+        if (ns < 0)
+            throw new IllegalArgumentException("time step: "+ns);
+        now_ns += ns;
+    }
+}
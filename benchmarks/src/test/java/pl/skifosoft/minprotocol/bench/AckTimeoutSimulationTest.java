@@ -0,0 +1,81 @@
+package pl.skifosoft.minprotocol.bench;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import pl.skifosoft.minprotocol.AckTimeoutException;
+import pl.skifosoft.minprotocol.MinFrame;
+import pl.skifosoft.minprotocol.MinTransport;
+import pl.skifosoft.minprotocol.MinTransportConfig;
+
+class AckTimeoutSimulationTest {
+
+    private static final int MIN_ID = 1;
+    private static final int FRAMES = 100;
+    private static final int ACK_TIMEOUT_MS = 2000;
+    private static final long POLL_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    void fifoDeeperThanWindowDoesNotTimeOutOnSlowLink() throws Exception {
+        // # 200 byte frame takes about 220 ms at 9600 baud, the whole FIFO about 22 s
+        final VirtualClock clock = new VirtualClock();
+        final SimulatedLink link = SimulatedLink.builder().baudRate(9600).propagationDelay(50_000).build(clock);
+        final List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        final int delivered = run(clock, link, futures, TimeUnit.SECONDS.toNanos(60));
+
+        assertEquals(FRAMES, delivered);
+        for (final CompletableFuture<Void> future : futures) {
+            assertTrue(future.isDone() && !future.isCompletedExceptionally());
+        }
+    }
+
+    @Test
+    void deadLinkTimesOut() throws Exception {
+        final VirtualClock clock = new VirtualClock();
+        final SimulatedLink link = SimulatedLink.builder().baudRate(9600).byteDropRate(1).build(clock);
+        final List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        final int delivered = run(clock, link, futures, TimeUnit.SECONDS.toNanos(5));
+
+        assertEquals(0, delivered);
+        try {
+            futures.get(0).get(0, TimeUnit.SECONDS);
+            throw new AssertionError("frame acknowledged over dead link");
+        } catch (ExecutionException e) {
+            assertInstanceOf(AckTimeoutException.class, e.getCause());
+        }
+        // # first frame was sent at once, timeout counts from there
+        assertTrue(clock.nanoTime() >= TimeUnit.MILLISECONDS.toNanos(ACK_TIMEOUT_MS));
+    }
+
+    // # queues the whole FIFO at once, returns frames delivered until all futures are done or time is up
+    private static int run(final VirtualClock clock, final SimulatedLink link,
+                           final List<CompletableFuture<Void>> futures, final long duration_ns) throws Exception {
+        final MinTransportConfig config = MinTransportConfig.builder().clock(clock).transportFifoSize(FRAMES)
+            .maxWindowSize(4).retransmitTimeout(2000).ackTimeout(ACK_TIMEOUT_MS).build();
+        final MinTransport sender = new MinTransport(link.endA(), config);
+        final MinTransport receiver = new MinTransport(link.endB(), config);
+        for (int i = 0; i < FRAMES; i++) {
+            futures.add(sender.sendAsync(MIN_ID, new byte[200]));
+        }
+        int delivered = 0;
+        while (clock.nanoTime() < duration_ns && !futures.get(FRAMES - 1).isDone()) {
+            sender.poll();
+            for (final MinFrame frame : receiver.poll()) {
+                if (frame.getId() == MIN_ID) {
+                    delivered++;
+                }
+            }
+            clock.advance(POLL_NS);
+        }
+        return delivered;
+    }
+}
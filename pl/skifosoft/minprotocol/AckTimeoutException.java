@@ -0,0 +1,12 @@
+package pl.skifosoft.minprotocol;
+
+/**
+ * Frame was not acknowledged within ACK timeout, transport was reset.
+ * See MinTransportConfig.Builder.ackTimeout().
+ */
+public class AckTimeoutException extends TransportResetException {
+
+    public AckTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -4,4 +4,25 @@ package pl.skifosoft.minprotocol;
  * Thrown when outgoing FIFO is full.
  */
 public class FifoFullException extends MinException {
+
+    private final int priority;
+
+    public FifoFullException() {
+        this.priority = 0;
+    }
+
+    /**
+     * @param priority priority level whose FIFO is full
+     */
+    public FifoFullException(int priority) {
+        super("FIFO of priority "+priority+" full");
+        this.priority = priority;
+    }
+
+    /**
+     * @return priority level whose FIFO is full, see MinTransportConfig.Builder.priorityLevels()
+     */
+    public int getPriority() {
+        return priority;
+    }
 }
@@ -0,0 +1,109 @@
+package pl.skifosoft.minprotocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue, array based (D. Vyukov's bounded MPMC queue).
+ * Any number of threads may offer and poll concurrently, nothing is allocated after construction.
+ * Each slot carries a sequence number telling whether it is ready to be written or read,
+ * so producers and consumers contend only on their own position counter.
+ */
+final class MinBoundedQueue<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLongArray sequences;
+    private final AtomicLong enqueue_pos = new AtomicLong(0);
+    private final AtomicLong dequeue_pos = new AtomicLong(0);
+
+    /**
+     * @param capacity minimal capacity, rounded up to power of 2
+     */
+    MinBoundedQueue(final int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        buffer = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return false if queue is full
+     */
+    boolean offer(final E element) {
+
+        long pos = enqueue_pos.get();
+        int index;
+        for (;;) {
+            index = (int) (pos & mask);
+            final long dif = sequences.get(index) - pos;
+            if (dif == 0) {
+                if (enqueue_pos.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = enqueue_pos.get();
+            } else if (dif < 0) {
+                return false;
+            } else {
+                pos = enqueue_pos.get();
+            }
+        }
+        buffer.lazySet(index, element);
+        sequences.lazySet(index, pos + 1); // # publishes element to consumers
+        return true;
+    }
+
+    /**
+     * @return head of the queue or null if queue is empty
+     */
+    E poll() {
+
+        long pos = dequeue_pos.get();
+        int index;
+        for (;;) {
+            index = (int) (pos & mask);
+            final long dif = sequences.get(index) - (pos + 1);
+            if (dif == 0) {
+                if (dequeue_pos.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = dequeue_pos.get();
+            } else if (dif < 0) {
+                return null;
+            } else {
+                pos = dequeue_pos.get();
+            }
+        }
+        final E element = buffer.get(index);
+        buffer.lazySet(index, null);
+        sequences.lazySet(index, pos + mask + 1); // # slot free for next turn of producers
+        return element;
+    }
+
+    /**
+     * @return true if nothing is published for consumers, may be stale under concurrent access
+     */
+    boolean isEmpty() {
+        final long pos = dequeue_pos.get();
+        return sequences.get((int) (pos & mask)) - (pos + 1) < 0;
+    }
+
+    /**
+     * @return true if offer() would fail now, may be stale under concurrent access
+     */
+    boolean isFull() {
+        final long pos = enqueue_pos.get();
+        return sequences.get((int) (pos & mask)) - pos < 0;
+    }
+}
@@ -0,0 +1,48 @@
+package pl.skifosoft.minprotocol;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Bulk byte scanning helpers.
+ * Looks at 8 bytes at a time (SWAR) to find the next 0xaa header byte,
+ * runs without it can be copied in bulk instead of going through the per byte state machines.
+ */
+final class MinBytes {
+
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class,
+                                                                                   ByteOrder.LITTLE_ENDIAN);
+
+    private static final long HEADER_PATTERN = 0xaaaaaaaaaaaaaaaaL;
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private MinBytes() {
+    }
+
+    /**
+     * @param data bytes to scan
+     * @param from first index to check, inclusive
+     * @param to last index to check, exclusive
+     * @return index of the first 0xaa byte in range, or to if there is none
+     */
+    static int indexOfHeader(final byte[] data, final int from, final int to) {
+
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            // bytes equal to 0xaa become zero, lowest set high bit marks the first of them
+            final long x = ((long) LONG_LE.get(data, i)) ^ HEADER_PATTERN;
+            final long found = (x - LOW_BITS) & ~x & HIGH_BITS;
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if (data[i] == MinFrameDecoder.HEADER_BYTE) {
+                return i;
+            }
+        }
+        return to;
+    }
+}
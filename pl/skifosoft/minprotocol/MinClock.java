@@ -0,0 +1,23 @@
+package pl.skifosoft.minprotocol;
+
+/**
+ * Source of time for transport timeouts, see MinTransportConfig.Builder.clock().
+ * Lets simulations run transports on virtual time.
+ */
+public interface MinClock {
+
+    /**
+     * System.nanoTime(), default clock.
+     */
+    MinClock SYSTEM = new MinClock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * @return current time in nanoseconds, only differences between values are meaningful
+     */
+    long nanoTime();
+}
@@ -1,5 +1,7 @@
 package pl.skifosoft.minprotocol;
 
+import java.util.concurrent.CompletableFuture;
+
 public final class MinFrame {
 
     /**
@@ -15,8 +17,21 @@ public final class MinFrame {
             this.minId = (byte)(minId & 0x3f);
         }
         this.payload = payload;
+        this.length = payload.length;
         this.seq = (byte)(seq & 0xff);
         this.is_transport = transport;
+        this.pool = null;
+    }
+
+    /**
+     * Reusable frame with payload buffer of given capacity.
+     * Returned to the pool by release(), if pool is given.
+     */
+    MinFrame(int capacity, MinBoundedQueue<MinFrame> pool) {
+        this.payload = new byte[capacity];
+        this.length = 0;
+        this.is_transport = true;
+        this.pool = pool;
     }
 
     /**
@@ -32,21 +47,69 @@ public final class MinFrame {
     }
 
     /**
+     * For frames leased from receive frame pool (see MinTransportConfig.Builder.rxFramePoolSize())
+     * returned array is a 255 bytes long buffer, only first getLength() bytes are valid.
+     *
      * @return payload bytes, max payload length is 255
      */
     public byte[] getPayload() {
         return payload;
     }
 
+    /**
+     * @return payload length, 0 - 255
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Return frame leased from receive frame pool, so transport can reuse it
+     * for another received frame. Frame must not be used after that.
+     * Does nothing for frames which are not pooled. May be called from any thread.
+     */
+    public void release() {
+        if (pool != null && leased) {
+            leased = false;
+            pool.offer(this);
+        }
+    }
+
     void setPayload(byte[] p) {
         payload = p;
+        length = p.length;
+    }
+
+    // # fill reusable frame
+    void set(byte minId, byte[] payload, int length, int seq, boolean transport) {
+        System.arraycopy(payload, 0, this.payload, 0, length);
+        this.minId = (byte)(minId & 0x3f);
+        this.length = length;
+        this.seq = (byte)(seq & 0xff);
+        this.is_transport = transport;
+        this.transmissions = 0;
+        this.last_sent_time = -1;
     }
 
     byte minId;
     byte seq;
     public byte[] payload;
+    int length;
     boolean is_transport;
-    long last_sent_time = -1;
+    final MinBoundedQueue<MinFrame> pool;
+    volatile boolean leased = false;
+    long last_sent_time = -1; // MinClock.nanoTime() based
+    int transmissions = 0;
+    long queued_time; // # when queueFrame() was called
+    int priority; // # level of transport FIFO, 0 most urgent
+    CompletableFuture<Void> future; // # completed on ACK, null if not sent by sendAsync()
+
+    // # Retransmit timer, see MinTimerWheel
+    long timer_deadline_ns;
+    long timer_tick;
+    MinFrame timer_next;
+    MinFrame timer_prev;
+    boolean timer_scheduled = false;
 
     @Override
     public String toString() {
@@ -0,0 +1,278 @@
+package pl.skifosoft.minprotocol;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Incremental decoder of MIN frames.
+ * Keeps fixed size payload buffer and updates CRC as bytes arrive,
+ * so decoding does not produce garbage per frame.
+ * Not thread safe, one decoder per byte stream.
+ */
+public final class MinFrameDecoder {
+
+    /**
+     * Receives frames with valid CRC and EOF.
+     */
+    public interface Listener {
+
+        /**
+         * Called for every correctly received frame.
+         * Payload array is owned by the decoder and is valid only during this call,
+         * copy it if you need to keep it.
+         *
+         * @param idControl id/control byte of the frame, bit 7 set for transport frames
+         * @param seq sequence number (0 - 255), 0 for non-transport frames
+         * @param payload payload buffer, only first length bytes are valid
+         * @param length payload length (0 - 255)
+         */
+        void frameDecoded(byte idControl, int seq, byte[] payload, int length);
+    }
+
+    private static enum State {
+        SEARCHING_FOR_SOF,
+        RECEIVING_ID_CONTROL,
+        RECEIVING_LENGTH,
+        RECEIVING_SEQ,
+        RECEIVING_PAYLOAD,
+        RECEIVING_CHECKSUM_3,
+        RECEIVING_CHECKSUM_2,
+        RECEIVING_CHECKSUM_1,
+        RECEIVING_CHECKSUM_0,
+        RECEIVING_EOF;
+    }
+
+    static final byte HEADER_BYTE = (byte) 0xaa;
+    static final byte STUFF_BYTE = (byte) 0x55;
+    static final byte EOF_BYTE = (byte) 0x55;
+
+    /**
+     * Maximal payload length of a single frame.
+     */
+    public static final int MAX_PAYLOAD = 255;
+
+    private final Listener listener;
+
+    private final byte[] rx_frame_buf = new byte[MAX_PAYLOAD];
+    private final CRC32 rx_crc = new CRC32();
+    private byte[] rx_copy_buf = null; // direct buffers are decoded in chunks, allocated on first use
+    private int rx_header_bytes_seen = 0;
+    private State rx_frame_state = State.SEARCHING_FOR_SOF;
+    private int rx_frame_checksum = 0;
+    private byte rx_frame_id_control = 0;
+    private byte rx_frame_seq = 0;
+    private int rx_frame_length = 0;
+    private int rx_payload_bytes = 0;
+
+    private long crc_errors = 0;
+    private long missing_eof_errors = 0;
+
+    /**
+     * @param listener receiver of decoded frames
+     */
+    public MinFrameDecoder(final Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return frames dropped because of checksum mismatch
+     */
+    public long getCrcErrors() {
+        return crc_errors;
+    }
+
+    /**
+     * @return frames with valid checksum dropped because EOF byte was missing
+     */
+    public long getMissingEofErrors() {
+        return missing_eof_errors;
+    }
+
+    /**
+     * Drops partially received frame and starts searching for the next header.
+     */
+    public void reset() {
+        rx_header_bytes_seen = 0;
+        rx_frame_state = State.SEARCHING_FOR_SOF;
+    }
+
+    /**
+     * Decode all bytes from the array.
+     *
+     * @param data received bytes
+     */
+    public void decode(final byte[] data) {
+        decode(data, 0, data.length);
+    }
+
+    /**
+     * Decode bytes from the array.
+     *
+     * @param data received bytes
+     * @param offset index of first byte to decode
+     * @param length number of bytes to decode
+     */
+    public void decode(final byte[] data, final int offset, final int length) {
+        final int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            // byte after two 0xaa must go through the state machine, otherwise
+            // runs without 0xaa are skipped or copied in bulk
+            if (rx_header_bytes_seen < 2) {
+                if (rx_frame_state == State.SEARCHING_FOR_SOF) {
+                    final int next = MinBytes.indexOfHeader(data, i, end);
+                    if (next > i) {
+                        rx_header_bytes_seen = 0;
+                        i = next;
+                        continue;
+                    }
+                } else if (rx_frame_state == State.RECEIVING_PAYLOAD) {
+                    final int run_end = Math.min(end, i + rx_frame_length - rx_payload_bytes);
+                    final int next = MinBytes.indexOfHeader(data, i, run_end);
+                    if (next > i) {
+                        final int run = next - i;
+                        System.arraycopy(data, i, rx_frame_buf, rx_payload_bytes, run);
+                        rx_crc.update(data, i, run);
+                        rx_payload_bytes += run;
+                        rx_header_bytes_seen = 0;
+                        if (rx_payload_bytes == rx_frame_length) {
+                            rx_frame_state = State.RECEIVING_CHECKSUM_3;
+                        }
+                        i = next;
+                        continue;
+                    }
+                }
+            }
+            rx_byte(data[i++]);
+        }
+    }
+
+    /**
+     * Decode all remaining bytes of the buffer, heap or direct.
+     * Direct buffers are copied in chunks to an internal array.
+     * On return buffer position equals its limit.
+     *
+     * @param data received bytes
+     */
+    public void decode(final ByteBuffer data) {
+        if (data.hasArray()) {
+            decode(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+        } else {
+            if (rx_copy_buf == null) {
+                rx_copy_buf = new byte[1024];
+            }
+            while (data.hasRemaining()) {
+                final int length = Math.min(data.remaining(), rx_copy_buf.length);
+                data.get(rx_copy_buf, 0, length);
+                decode(rx_copy_buf, 0, length);
+            }
+        }
+    }
+
+    private void rx_byte(final byte b) {
+
+        if (rx_header_bytes_seen == 2) {
+            rx_header_bytes_seen = 0;
+            if (b == HEADER_BYTE) {
+                rx_frame_state = State.RECEIVING_ID_CONTROL;
+                return;
+            }
+            if (b == STUFF_BYTE) {
+                // # Discard this byte; carry on receiving the next character
+                return;
+            }
+            rx_frame_state = State.SEARCHING_FOR_SOF;
+            return;
+        }
+        if (b == HEADER_BYTE) {
+            rx_header_bytes_seen++;
+        } else {
+            rx_header_bytes_seen = 0;
+        }
+
+        switch (rx_frame_state) {
+            case SEARCHING_FOR_SOF:
+                break; // no op
+            case RECEIVING_ID_CONTROL: {
+                rx_frame_id_control = b;
+                rx_frame_seq = 0;
+                rx_crc.reset();
+                rx_crc.update(b);
+                if ((rx_frame_id_control & 0x80) != 0) {
+                    rx_frame_state = State.RECEIVING_SEQ;
+                } else {
+                    rx_frame_state = State.RECEIVING_LENGTH;
+                }
+            }
+                break;
+            case RECEIVING_SEQ: {
+                rx_frame_seq = b;
+                rx_crc.update(b);
+                rx_frame_state = State.RECEIVING_LENGTH;
+            }
+                break;
+            case RECEIVING_LENGTH: {
+                rx_frame_length = b & 0xff;
+                rx_payload_bytes = 0;
+                rx_crc.update(b);
+                if (rx_frame_length > 0) {
+                    rx_frame_state = State.RECEIVING_PAYLOAD;
+                } else {
+                    rx_frame_state = State.RECEIVING_CHECKSUM_3;
+                }
+            }
+                break;
+            case RECEIVING_PAYLOAD: {
+                rx_frame_buf[rx_payload_bytes++] = b;
+                rx_crc.update(b);
+                if (rx_payload_bytes == rx_frame_length) {
+                    rx_frame_state = State.RECEIVING_CHECKSUM_3;
+                }
+            }
+                break;
+            case RECEIVING_CHECKSUM_3: {
+                rx_frame_checksum = (b << 24) & 0xff000000;
+                rx_frame_state = State.RECEIVING_CHECKSUM_2;
+            }
+                break;
+            case RECEIVING_CHECKSUM_2: {
+                rx_frame_checksum |= (b << 16) & 0x00ff0000;
+                rx_frame_state = State.RECEIVING_CHECKSUM_1;
+            }
+                break;
+            case RECEIVING_CHECKSUM_1: {
+                rx_frame_checksum |= (b << 8) & 0x0000ff00;
+                rx_frame_state = State.RECEIVING_CHECKSUM_0;
+            }
+                break;
+            case RECEIVING_CHECKSUM_0: {
+                rx_frame_checksum |= b & 0xff;
+                if (rx_frame_checksum != (int) rx_crc.getValue()) {
+                    crc_errors++;
+                    rx_frame_state = State.SEARCHING_FOR_SOF;
+                } else {
+                    rx_frame_state = State.RECEIVING_EOF;
+                }
+            }
+                break;
+            case RECEIVING_EOF: {
+                if (b == EOF_BYTE) {
+                    // # Frame received OK, pass up frame for handling
+                    listener.frameDecoded(rx_frame_id_control, rx_frame_seq & 0xff, rx_frame_buf, rx_payload_bytes);
+                } else {
+                    missing_eof_errors++;
+                }
+
+                // # Look for next frame
+                rx_frame_state = State.SEARCHING_FOR_SOF;
+            }
+                break;
+            default:
+                System.out.println("Unexpected state, state machine reset");
+                // # Should never get here but in case we do just reset
+                rx_frame_state = State.SEARCHING_FOR_SOF;
+                break;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package pl.skifosoft.minprotocol;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Encoder of MIN frames.
+ * Writes header, byte stuffed frame body, CRC and EOF straight into caller supplied
+ * heap or direct buffer, without intermediate copies.
+ * Not thread safe, one encoder per writer.
+ */
+public final class MinFrameEncoder {
+
+    /**
+     * Size of the longest possible encoded frame: 3 header bytes,
+     * id/control, seq, length, 255 bytes of payload and 4 bytes of CRC
+     * with worst case stuffing, and EOF byte.
+     */
+    public static final int MAX_FRAME_SIZE = 3 + max_stuffed_size(3 + MinFrameDecoder.MAX_PAYLOAD + 4) + 1;
+
+    private static final byte HEADER_BYTE = MinFrameDecoder.HEADER_BYTE;
+    private static final byte STUFF_BYTE = MinFrameDecoder.STUFF_BYTE;
+    private static final byte EOF_BYTE = MinFrameDecoder.EOF_BYTE;
+
+    private final CRC32 crc32 = new CRC32();
+    private int count = 0;
+
+    /**
+     * Encode frame into the buffer, starting at its position.
+     * On return buffer position is advanced past the encoded frame.
+     *
+     * @param dst destination buffer, heap or direct
+     * @param idControl id/control byte, bit 7 set for transport frames (including ACK and RESET)
+     * @param seq sequence number, written only for transport frames
+     * @param payload payload bytes
+     * @param offset index of first payload byte
+     * @param length payload length (0 - 255)
+     * @return number of bytes written
+     * @throws BufferOverflowException if buffer may be too small for the frame
+     */
+    public int encode(final ByteBuffer dst, final byte idControl, final int seq, final byte[] payload, final int offset,
+                      final int length) {
+
+        if (length < 0 || length > MinFrameDecoder.MAX_PAYLOAD)
+            throw new IllegalArgumentException("payload length: "+length+", max 255.");
+
+        final boolean transport = (idControl & 0x80) != 0;
+        final int body_size = (transport ? 3 : 2) + length + 4;
+
+        if (dst.remaining() < 3 + max_stuffed_size(body_size) + 1)
+            throw new BufferOverflowException();
+
+        final int start = dst.position();
+
+        dst.put(HEADER_BYTE);
+        dst.put(HEADER_BYTE);
+        dst.put(HEADER_BYTE);
+
+        crc32.reset();
+        count = 0;
+
+        stuffed_put(dst, idControl);
+        if (transport) {
+            stuffed_put(dst, (byte) (seq & 0xff));
+        }
+        stuffed_put(dst, (byte) length);
+
+        // runs without 0xaa need no stuffing and are copied in bulk
+        final int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            final int next = MinBytes.indexOfHeader(payload, i, end);
+            if (next > i) {
+                crc32.update(payload, i, next - i);
+                dst.put(payload, i, next - i);
+                count = 0;
+            }
+            if (next < end) {
+                stuffed_put(dst, payload[next]);
+            }
+            i = next + 1;
+        }
+
+        final int crc = (int) crc32.getValue();
+        stuffed_put(dst, (byte) (crc >>> 24));
+        stuffed_put(dst, (byte) (crc >>> 16));
+        stuffed_put(dst, (byte) (crc >>> 8));
+        stuffed_put(dst, (byte) crc);
+
+        dst.put(EOF_BYTE);
+
+        return dst.position() - start;
+    }
+
+    /**
+     * Encode frame into a new array. Convenience method, allocates.
+     *
+     * @param idControl id/control byte, bit 7 set for transport frames (including ACK and RESET)
+     * @param seq sequence number, written only for transport frames
+     * @param payload payload bytes (0 - 255)
+     * @return on wire bytes of the frame
+     */
+    public byte[] encode(final byte idControl, final int seq, final byte[] payload) {
+        final ByteBuffer buf = ByteBuffer.allocate(MAX_FRAME_SIZE);
+        encode(buf, idControl, seq, payload, 0, payload.length);
+        final byte[] ret = new byte[buf.position()];
+        buf.flip();
+        buf.get(ret);
+        return ret;
+    }
+
+    // escape double 0xaa 0xaa sequence with 0x55 stuff byte
+    private void stuffed_put(final ByteBuffer dst, final byte b) {
+        crc32.update(b);
+        dst.put(b);
+        if (b == HEADER_BYTE) {
+            count++;
+            if (count == 2) {
+                dst.put(STUFF_BYTE);
+                count = 0;
+            }
+        } else {
+            count = 0;
+        }
+    }
+
+    private static int max_stuffed_size(final int size) {
+        return size + size / 2;
+    }
+}
@@ -0,0 +1,15 @@
+package pl.skifosoft.minprotocol;
+
+/**
+ * Handler of received frames with one minId, see MinTransport.setFrameHandler().
+ */
+public interface MinFrameHandler {
+
+    /**
+     * Called for every frame of the minId, one frame at a time, in order of arrival.
+     * Handler must release frames leased from receive frame pool, as usual.
+     *
+     * @param frame received frame
+     */
+    void frameReceived(MinFrame frame);
+}
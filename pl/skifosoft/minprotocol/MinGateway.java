@@ -0,0 +1,577 @@
+package pl.skifosoft.minprotocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Serves links (transports) to many local processes over TCP or Unix-domain sockets.
+ * <p>
+ * Gateway thread, the one calling run(), becomes the driver thread of every link, so once added
+ * only queueFrame() may be called on the transport from other threads. Frames received from links
+ * are sent to every client, frames sent by clients are queued to their links. A single Selector
+ * loop serves all sockets and links, it wakes up on socket readiness, incoming serial data
+ * and link deadlines.
+ * <p>
+ * Both directions use the same record: link id (1 byte), id/control (1 byte), payload length
+ * (1 byte), payload. Id/control holds minId in bits 0 - 5 and bit 7 set for transport frames,
+ * as in MIN frame header. Records from clients with bit 7 set are queued with queueFrame(),
+ * others sent at once with sendFrame().
+ * <p>
+ * Received frame is written once to a direct buffer, every client gets a view of it,
+ * waiting in its own outbound queue. Slow client whose queue exceeds clientQueueBytes misses
+ * frames (see getDroppedFrames()) without holding other clients back. When link FIFO is full,
+ * gateway stops reading from the client sending to it until acknowledged frames make room,
+ * so the client is held back by TCP flow control and nothing is dropped.
+ * <p>
+ * Listening sockets are opened and bound by the caller, e.g. on localhost or, on Java 16+,
+ * ServerSocketChannel.open(StandardProtocolFamily.UNIX) bound to UnixDomainSocketAddress.
+ * Links must not have frame handlers nor receive publisher subscribers.
+ * <p>
+ * Link whose transport throws is removed and reported to LinkListener, clients which sent
+ * records to it are disconnected, other links and clients are served on.
+ */
+public final class MinGateway implements Runnable, Closeable {
+
+    /**
+     * Number of link ids, 0 - 255.
+     */
+    public static final int MAX_LINKS = 256;
+
+    /**
+     * Notified about links removed by the gateway, called on the gateway thread.
+     */
+    public interface LinkListener {
+
+        /**
+         * Called when the transport throws, link is removed from the gateway and its id
+         * may be used again.
+         *
+         * @param linkId id of the failed link
+         * @param transport failed link
+         * @param e exception thrown by the link
+         */
+        void linkFailed(int linkId, MinTransport transport, RuntimeException e);
+    }
+
+    private static final int header_size = 3;
+    private static final int max_record_size = header_size + MinFrameDecoder.MAX_PAYLOAD;
+    private static final int slab_size = 64 * 1024;
+    private static final int client_in_size = 4096;
+    private static final int max_gathering_write = 64;
+    private static final long accept_retry_ns = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final class Link {
+
+        final int id;
+        final MinTransport transport;
+        final AtomicBoolean signalled = new AtomicBoolean(true);
+        long deadline_ns = Long.MAX_VALUE;
+
+        Link(final int id, final MinTransport transport) {
+            this.id = id;
+            this.transport = transport;
+        }
+    }
+
+    private static final class Client {
+
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocateDirect(client_in_size);
+        // # views of records shared with other clients
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        long out_bytes = 0;
+        boolean blocked = false; // # link FIFO full, record waits in buffer
+        final long[] used_links = new long[MAX_LINKS / 64]; // # links the client sent records to
+
+        Client(final SocketChannel channel, final SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    private final Selector selector;
+    private final long client_queue_bytes;
+    private final LinkListener link_listener;
+    // # link ids taken, checked by addLink() in the caller thread
+    private final AtomicReferenceArray<MinTransport> link_ids = new AtomicReferenceArray<MinTransport>(MAX_LINKS);
+    private final ConcurrentLinkedQueue<Runnable> control = new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean running = true;
+
+    // # gateway thread only
+    private final Link[] links = new Link[MAX_LINKS];
+    private final ArrayList<Link> link_list = new ArrayList<Link>();
+    private final ArrayList<Client> clients = new ArrayList<Client>();
+    // # servers not accepting after accept() failed, e.g. out of file descriptors
+    private final ArrayList<SelectionKey> paused_servers = new ArrayList<SelectionKey>();
+    private long accept_resume_ns;
+    private int blocked_clients = 0;
+    private ByteBuffer slab = ByteBuffer.allocateDirect(slab_size);
+    // # payload arrays by length, queueFrame() copies the payload
+    private final byte[][] payloads = new byte[MinFrameDecoder.MAX_PAYLOAD + 1][];
+    private final ByteBuffer[] write_batch = new ByteBuffer[max_gathering_write];
+
+    private final AtomicLong dropped_frames = new AtomicLong();
+    private volatile int client_count = 0;
+
+    /**
+     * @param clientQueueBytes longest outbound queue of a client, frames beyond it are dropped for that client
+     * @throws IOException if selector can not be opened
+     */
+    public MinGateway(final long clientQueueBytes) throws IOException {
+        this(clientQueueBytes, new LinkListener() {
+            @Override
+            public void linkFailed(int linkId, MinTransport transport, RuntimeException e) {
+            }
+        });
+    }
+
+    /**
+     * @param clientQueueBytes longest outbound queue of a client, frames beyond it are dropped for that client
+     * @param linkListener notified about failed links
+     * @throws IOException if selector can not be opened
+     */
+    public MinGateway(final long clientQueueBytes, final LinkListener linkListener) throws IOException {
+        if (clientQueueBytes < max_record_size)
+            throw new IllegalArgumentException("client queue bytes: "+clientQueueBytes+", min "+max_record_size);
+        this.client_queue_bytes = clientQueueBytes;
+        this.link_listener = linkListener;
+        this.selector = Selector.open();
+        for (int length = 0; length < payloads.length; length++) {
+            payloads[length] = new byte[length];
+        }
+    }
+
+    /**
+     * Serve transport under given link id. From now on transport is driven by the gateway thread.
+     * May be called from any thread.
+     *
+     * @param linkId id of the link in client records, 0 - 255
+     * @param transport link to serve
+     * @throws IllegalStateException if link id is already used
+     */
+    public void addLink(final int linkId, final MinTransport transport) {
+        if (linkId < 0 || linkId >= MAX_LINKS)
+            throw new IllegalArgumentException("link id: "+linkId+", must be 0 - "+(MAX_LINKS - 1));
+        if (!link_ids.compareAndSet(linkId, null, transport))
+            throw new IllegalStateException("link id already used: "+linkId);
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                final Link link = new Link(linkId, transport);
+                links[linkId] = link;
+                link_list.add(link);
+                transport.set_wakeup_listener(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (link.signalled.compareAndSet(false, true)) {
+                            selector.wakeup();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Accept clients connecting to the server socket, bound by the caller.
+     * May be called from any thread. Server socket is not closed by the gateway.
+     *
+     * @param server TCP or Unix-domain server socket
+     * @throws IOException if socket can not be made non-blocking
+     */
+    public void listen(final ServerSocketChannel server) throws IOException {
+        server.configureBlocking(false);
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.register(selector, SelectionKey.OP_ACCEPT);
+                } catch (ClosedChannelException e) {
+                    // # closed by the caller meanwhile
+                }
+            }
+        });
+    }
+
+    /**
+     * @return clients connected now
+     */
+    public int getClientCount() {
+        return client_count;
+    }
+
+    /**
+     * @return received frames not delivered to a client because its outbound queue was full
+     */
+    public long getDroppedFrames() {
+        return dropped_frames.get();
+    }
+
+    /**
+     * Event loop, returns after close(). Links are left as they are, clients are disconnected.
+     */
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                Runnable task;
+                while ((task = control.poll()) != null) {
+                    task.run();
+                }
+
+                long wait_ns = poll_links();
+                if (blocked_clients > 0) {
+                    retry_blocked_clients();
+                }
+                if (!paused_servers.isEmpty()) {
+                    wait_ns = Math.min(wait_ns, resume_accept());
+                }
+
+                // # select(0) would block forever
+                if (wait_ns <= 0) {
+                    selector.selectNow();
+                } else if (wait_ns == Long.MAX_VALUE) {
+                    selector.select();
+                } else {
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait_ns)));
+                }
+
+                final Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    final SelectionKey key = selected.next();
+                    selected.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(key);
+                    } else {
+                        final Client client = (Client) key.attachment();
+                        if (key.isReadable()) {
+                            read(client);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(client);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("gateway selector failed", e);
+        } catch (ClosedSelectorException e) {
+            // # closed by close()
+        } finally {
+            for (final Client client : clients) {
+                close_quietly(client);
+            }
+            clients.clear();
+            client_count = 0;
+            for (final Link link : link_list) {
+                link.transport.set_wakeup_listener(null);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // # nothing left to do
+            }
+        }
+    }
+
+    /**
+     * Stop the event loop.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void submit(final Runnable task) {
+        control.add(task);
+        selector.wakeup();
+    }
+
+    // # poll links signalled or due, returns time until the earliest deadline
+    private long poll_links() {
+        long now_ns = System.nanoTime();
+        long wait_ns = Long.MAX_VALUE;
+        for (int i = 0; i < link_list.size(); i++) {
+            final Link link = link_list.get(i);
+            if (link.signalled.getAndSet(false)
+                || (link.deadline_ns != Long.MAX_VALUE && link.deadline_ns - now_ns <= 0)) {
+                final ArrayList<MinFrame> frames;
+                final long link_wait_ns;
+                try {
+                    frames = link.transport.poll();
+                    link_wait_ns = link.transport.next_poll_wait_ns();
+                } catch (RuntimeException e) {
+                    fail_link(link, e);
+                    i--;
+                    continue;
+                }
+                fan_out(link.id, frames);
+                now_ns = System.nanoTime();
+                link.deadline_ns = (link_wait_ns == Long.MAX_VALUE) ? Long.MAX_VALUE : now_ns + link_wait_ns;
+            }
+            if (link.deadline_ns != Long.MAX_VALUE) {
+                wait_ns = Math.min(wait_ns, Math.max(0, link.deadline_ns - now_ns));
+            }
+        }
+        return wait_ns;
+    }
+
+    // # frames written once, each client gets a view
+    private void fan_out(final int link_id, final ArrayList<MinFrame> frames) {
+        if (frames.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < frames.size(); i++) {
+            final MinFrame frame = frames.get(i);
+            if (slab.remaining() < max_record_size) {
+                slab = ByteBuffer.allocateDirect(slab_size);
+            }
+            final int start = slab.position();
+            slab.put((byte) link_id);
+            slab.put((byte) ((frame.minId & 0x3f) | (frame.is_transport ? 0x80 : 0)));
+            slab.put((byte) frame.length);
+            slab.put(frame.payload, 0, frame.length);
+            frame.release();
+
+            final ByteBuffer record = slab.duplicate();
+            record.position(start);
+            record.limit(slab.position());
+            for (int c = 0; c < clients.size(); c++) {
+                final Client client = clients.get(c);
+                if (client.out_bytes + record.remaining() > client_queue_bytes) {
+                    dropped_frames.incrementAndGet();
+                    continue;
+                }
+                client.out.add(record.duplicate());
+                client.out_bytes += record.remaining();
+            }
+        }
+        for (int c = clients.size() - 1; c >= 0; c--) {
+            final Client client = clients.get(c);
+            if (!client.out.isEmpty() && (client.key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                write(client);
+            }
+        }
+    }
+
+    // # remove the link, disconnect clients using it
+    private void fail_link(final Link link, final RuntimeException e) {
+        link_list.remove(link);
+        links[link.id] = null;
+        link.transport.set_wakeup_listener(null);
+        final int word = link.id >>> 6;
+        final long bit = 1L << (link.id & 63);
+        for (int c = clients.size() - 1; c >= 0; c--) {
+            final Client client = clients.get(c);
+            if ((client.used_links[word] & bit) != 0) {
+                disconnect(client);
+            }
+        }
+        link_ids.set(link.id, null);
+        link_listener.linkFailed(link.id, link.transport, e);
+    }
+
+    private void accept(final SelectionKey server_key) {
+        final ServerSocketChannel server = (ServerSocketChannel) server_key.channel();
+        SocketChannel channel = null;
+        final SelectionKey key;
+        try {
+            channel = server.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+            key = channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // # already gone
+                }
+            } else if (server.isOpen()) {
+                // # e.g. out of file descriptors, server stays readable, so try again later instead of spinning
+                server_key.interestOps(0);
+                if (paused_servers.isEmpty()) {
+                    accept_resume_ns = System.nanoTime() + accept_retry_ns;
+                }
+                paused_servers.add(server_key);
+            }
+            return;
+        }
+        final Client client = new Client(channel, key);
+        key.attach(client);
+        clients.add(client);
+        client_count = clients.size();
+    }
+
+    // # returns time until paused servers accept again
+    private long resume_accept() {
+        final long wait_ns = accept_resume_ns - System.nanoTime();
+        if (wait_ns > 0) {
+            return wait_ns;
+        }
+        for (final SelectionKey key : paused_servers) {
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_ACCEPT);
+            }
+        }
+        paused_servers.clear();
+        return Long.MAX_VALUE;
+    }
+
+    private void read(final Client client) {
+        final int n;
+        try {
+            n = client.channel.read(client.in);
+        } catch (IOException e) {
+            disconnect(client);
+            return;
+        }
+        if (n < 0) {
+            disconnect(client);
+            return;
+        }
+        drain_input(client);
+    }
+
+    // # queue complete records, stop at full link FIFO
+    private void drain_input(final Client client) {
+        final ByteBuffer in = client.in;
+        in.flip();
+        try {
+            while (in.remaining() >= header_size) {
+                final int start = in.position();
+                final int length = in.get(start + 2) & 0xff;
+                if (in.remaining() < header_size + length) {
+                    break;
+                }
+                final Link link = links[in.get(start) & 0xff];
+                final int id_control = in.get(start + 1) & 0xff;
+                if (link == null || (id_control & 0x40) != 0) {
+                    disconnect(client); // # not a gateway client
+                    return;
+                }
+                client.used_links[link.id >>> 6] |= 1L << (link.id & 63);
+                final byte[] payload = payloads[length];
+                in.position(start + header_size);
+                in.get(payload);
+                try {
+                    if ((id_control & 0x80) != 0) {
+                        link.transport.queueFrame(id_control & 0x3f, payload);
+                    } else {
+                        link.transport.sendFrame(id_control & 0x3f, payload);
+                    }
+                } catch (FifoFullException e) {
+                    in.position(start);
+                    set_blocked(client, true);
+                    return;
+                } catch (MinException e) {
+                    disconnect(client); // # payload too long for compressed minId
+                    return;
+                } catch (RuntimeException e) {
+                    fail_link(link, e); // # disconnects this client too
+                    return;
+                }
+            }
+            set_blocked(client, false);
+        } finally {
+            in.compact();
+        }
+    }
+
+    private void set_blocked(final Client client, final boolean blocked) {
+        if (client.blocked != blocked) {
+            client.blocked = blocked;
+            blocked_clients += blocked ? 1 : -1;
+            if (client.key.isValid()) {
+                final int ops = client.key.interestOps();
+                client.key.interestOps(blocked ? ops & ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    private void retry_blocked_clients() {
+        // # failed link may disconnect several clients at once
+        for (int c = clients.size() - 1; c >= 0; c--) {
+            if (c < clients.size() && clients.get(c).blocked) {
+                drain_input(clients.get(c));
+            }
+        }
+    }
+
+    private void write(final Client client) {
+        try {
+            while (!client.out.isEmpty()) {
+                int count = 0;
+                for (final ByteBuffer record : client.out) {
+                    write_batch[count++] = record;
+                    if (count == write_batch.length) {
+                        break;
+                    }
+                }
+                final long written = client.channel.write(write_batch, 0, count);
+                client.out_bytes -= written;
+                while (!client.out.isEmpty() && !client.out.peek().hasRemaining()) {
+                    client.out.poll();
+                }
+                if (written == 0 || !client.out.isEmpty() && client.out.peek().position() > 0) {
+                    break; // # socket buffer full
+                }
+            }
+        } catch (IOException e) {
+            disconnect(client);
+            return;
+        } finally {
+            for (int i = 0; i < write_batch.length; i++) {
+                write_batch[i] = null;
+            }
+        }
+        final int ops = client.key.interestOps();
+        client.key.interestOps(client.out.isEmpty() ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE);
+    }
+
+    private void disconnect(final Client client) {
+        if (client.blocked) {
+            blocked_clients--;
+            client.blocked = false;
+        }
+        close_quietly(client);
+        clients.remove(client);
+        client_count = clients.size();
+    }
+
+    private static void close_quietly(final Client client) {
+        client.key.cancel();
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+            // # already gone
+        }
+        client.out.clear();
+    }
+}
@@ -0,0 +1,139 @@
+package pl.skifosoft.minprotocol;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Frames of one minId on their way from the driver thread to a handler running on an executor.
+ * The driver offers frames to a bounded lock-free queue and schedules a drain task unless one
+ * is scheduled already, so the handler sees one frame at a time in order of arrival, on any
+ * executor, even a thread per task one. When the executor rejects the drain task, frames stay
+ * queued and the driver schedules it again on its next poll. When the handler is replaced, the driver
+ * takes over frames left once the drain task is done and passes them on to the new one.
+ */
+final class MinHandlerQueue implements Runnable {
+
+    private final MinTransport transport;
+    final int min_id;
+    final MinFrameHandler handler;
+    private final Executor executor; // # null for inline handler, called by the driver
+    private final MinBoundedQueue<MinFrame> frames;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    // # driver found the queue full and holds frames back, wake it up when room is made
+    private volatile boolean driver_waiting = false;
+    private boolean taken_over = false; // # driver thread
+
+    MinHandlerQueue(final MinTransport transport, final int minId, final MinFrameHandler handler,
+                    final Executor executor, final int queueSize) {
+        this.transport = transport;
+        this.min_id = minId;
+        this.handler = handler;
+        this.executor = executor;
+        this.frames = (executor != null) ? new MinBoundedQueue<MinFrame>(queueSize) : null;
+    }
+
+    boolean inline() {
+        return executor == null;
+    }
+
+    /**
+     * @return true if another frame may be offered, driver thread
+     */
+    boolean has_room() {
+        if (frames.isFull()) {
+            driver_waiting = true;
+            // # drain may have finished before the flag was set
+            return !frames.isFull();
+        }
+        return true;
+    }
+
+    /**
+     * @return false if queue is full, driver thread
+     */
+    boolean offer(final MinFrame frame) {
+        if (!frames.offer(frame)) {
+            return false;
+        }
+        schedule();
+        return true;
+    }
+
+    /**
+     * Schedule drain task again after the executor rejected it, driver thread.
+     */
+    void retry() {
+        if (!frames.isEmpty()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Stop scheduling the drain task of replaced handler, driver thread.
+     *
+     * @return true if frames left may be taken, false while the drain task is scheduled or runs,
+     *         it wakes up the driver when done
+     */
+    boolean take_over() {
+        if (!taken_over) {
+            if (!scheduled.compareAndSet(false, true)) {
+                driver_waiting = true;
+                // # drain may have finished before the flag was set
+                if (!scheduled.compareAndSet(false, true)) {
+                    return false;
+                }
+            }
+            // # flag stays set, drain task is never scheduled again
+            taken_over = true;
+        }
+        return true;
+    }
+
+    /**
+     * @return next frame left in queue taken over, null if none, driver thread
+     */
+    MinFrame take() {
+        return frames.poll();
+    }
+
+    boolean is_empty() {
+        return frames.isEmpty();
+    }
+
+    // # returns false if rejected
+    private boolean schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // # frames stay queued and accepted, they must not be received again
+                scheduled.set(false);
+                transport.handler_rejected();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            MinFrame frame;
+            while ((frame = frames.poll()) != null) {
+                handler.frameReceived(frame);
+            }
+        } finally {
+            scheduled.set(false);
+            // # frame offered after the last poll, or handler has thrown
+            final boolean rejected = !frames.isEmpty() && !schedule();
+            // # slots freed by poll() are visible before the flag is read, see has_room()
+            VarHandle.fullFence();
+            if (driver_waiting || rejected) {
+                driver_waiting = false;
+                transport.wakeup();
+            }
+        }
+    }
+}
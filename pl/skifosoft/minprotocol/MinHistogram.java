@@ -0,0 +1,122 @@
+package pl.skifosoft.minprotocol;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of nanosecond durations with log-linear buckets, as in HdrHistogram:
+ * buckets count units of 32 ns, 32 buckets per power of two, so values from 1 microsecond
+ * to over an hour are kept with about 3% precision (32 ns below that) in about 8 KB,
+ * allocated on first record.
+ * Larger values fall into the last bucket, max is always exact.
+ * Recorded by a single thread without locking, may be read from any thread.
+ */
+public final class MinHistogram {
+
+    private static final int unit_bits = 5; // # buckets count units of 32 ns
+    private static final int range_bits = 37; // # in units, 2^42 ns is 73 minutes
+    private static final int sub_bucket_bits = 5;
+    private static final int sub_buckets = 1 << sub_bucket_bits;
+    private static final int bucket_count = (range_bits - sub_bucket_bits + 1) * sub_buckets;
+
+    // # counts[bucket_count] is total count, then sum and max
+    private static final int total_index = bucket_count;
+    private static final int sum_index = bucket_count + 1;
+    private static final int max_index = bucket_count + 2;
+    private volatile AtomicLongArray counts = null;
+
+    MinHistogram() {
+    }
+
+    /**
+     * Record value, negative values are recorded as 0. Single writer only.
+     */
+    void record(final long value) {
+        AtomicLongArray c = counts;
+        if (c == null) {
+            c = new AtomicLongArray(bucket_count + 3);
+            counts = c;
+        }
+        final long v = Math.max(0, value);
+        final int index = index_of(v);
+        // # single writer, ordered stores are enough for readers
+        c.lazySet(index, c.get(index) + 1);
+        c.lazySet(total_index, c.get(total_index) + 1);
+        c.lazySet(sum_index, c.get(sum_index) + v);
+        if (v > c.get(max_index)) {
+            c.lazySet(max_index, v);
+        }
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long getCount() {
+        final AtomicLongArray c = counts;
+        return c == null ? 0 : c.get(total_index);
+    }
+
+    /**
+     * @return largest recorded value, 0 if none
+     */
+    public long getMax() {
+        final AtomicLongArray c = counts;
+        return c == null ? 0 : c.get(max_index);
+    }
+
+    /**
+     * @return mean of recorded values, 0 if none
+     */
+    public double getMean() {
+        final AtomicLongArray c = counts;
+        final long count = (c == null) ? 0 : c.get(total_index);
+        return count == 0 ? 0 : c.get(sum_index) / (double) count;
+    }
+
+    /**
+     * @param percentile 0 - 100
+     * @return highest value equivalent to the value at given percentile, 0 if none recorded
+     */
+    public long getValueAtPercentile(final double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("percentile: "+percentile);
+        final AtomicLongArray c = counts;
+        final long count = (c == null) ? 0 : c.get(total_index);
+        if (count == 0) {
+            return 0;
+        }
+        final long max = c.get(max_index);
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < bucket_count; i++) {
+            seen += c.get(i);
+            if (seen >= rank) {
+                return Math.min(highest_value_of(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int index_of(final long value) {
+        final long v = value >>> unit_bits;
+        if (v < sub_buckets) {
+            return (int) v;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(v) - sub_bucket_bits;
+        return Math.min(bucket_count - 1, (shift + 1) * sub_buckets + (int) (v >>> shift) - sub_buckets);
+    }
+
+    private static long highest_value_of(final int index) {
+        if (index == bucket_count - 1) {
+            return Long.MAX_VALUE;
+        }
+        long units;
+        if (index < sub_buckets) {
+            units = index;
+        } else {
+            final int shift = index / sub_buckets - 1;
+            final long mantissa = index % sub_buckets + sub_buckets;
+            units = ((mantissa + 1) << shift) - 1;
+        }
+        return ((units + 1) << unit_bits) - 1;
+    }
+}
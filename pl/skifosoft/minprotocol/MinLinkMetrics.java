@@ -0,0 +1,426 @@
+package pl.skifosoft.minprotocol;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms of a single link, see MinTransport.getMetrics().
+ * Updated by the driver thread with ordered stores only, may be read from any thread.
+ * Values read together are not a consistent snapshot.
+ */
+public final class MinLinkMetrics implements MinLinkMetricsMBean {
+
+    private final AtomicLong frames_sent = new AtomicLong();
+    private final AtomicLong frames_retransmitted = new AtomicLong();
+    private final AtomicLong frames_received = new AtomicLong();
+    private final AtomicLong duplicate_frames = new AtomicLong();
+    private final AtomicLong sequence_mismatch_drops = new AtomicLong();
+    private final AtomicLong receiver_backpressure_drops = new AtomicLong();
+    private final AtomicLong dropped_frames = new AtomicLong(); // # by producers, FIFO full
+    private final AtomicLongArray dropped_frames_by_priority;
+    private final AtomicLong acks_sent = new AtomicLong();
+    private final AtomicLong nacks_sent = new AtomicLong();
+    private final AtomicLong nacks_received = new AtomicLong();
+    private final AtomicLong spurious_acks = new AtomicLong();
+    private final AtomicLong resets_sent = new AtomicLong();
+    private final AtomicLong resets_received = new AtomicLong();
+    private final AtomicLong crc_errors = new AtomicLong();
+    private final AtomicLong missing_eof_errors = new AtomicLong();
+    private final AtomicLong bytes_sent = new AtomicLong();
+    private final AtomicLong bytes_received = new AtomicLong();
+    private final AtomicLong serial_writes = new AtomicLong();
+    private final AtomicLong bytes_before_compression = new AtomicLong();
+    private final AtomicLong bytes_after_compression = new AtomicLong();
+    private final AtomicLong decompression_errors = new AtomicLong();
+    private volatile int transport_fifo_depth = 0;
+    private volatile int longest_transport_fifo = 0;
+
+    private final MinHistogram rtt = new MinHistogram();
+    private final MinHistogram ack_latency = new MinHistogram();
+
+    private final boolean histograms_enabled;
+
+    private ObjectName object_name = null;
+
+    MinLinkMetrics(final boolean histogramsEnabled, final int priorityLevels) {
+        this.histograms_enabled = histogramsEnabled;
+        this.dropped_frames_by_priority = new AtomicLongArray(priorityLevels);
+    }
+
+    /**
+     * Register as MBean pl.skifosoft.minprotocol:type=MinLink,name=linkName
+     * in the platform MBean server.
+     *
+     * @param linkName name of the link, e.g. serial port name
+     * @throws JMException if registration fails, e.g. name is taken
+     */
+    public synchronized void register(final String linkName) throws JMException {
+        if (object_name != null)
+            throw new IllegalStateException("already registered as "+object_name);
+        final ObjectName name = new ObjectName("pl.skifosoft.minprotocol:type=MinLink,name="+ObjectName.quote(linkName));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        object_name = name;
+    }
+
+    /**
+     * Unregister from the platform MBean server, does nothing if not registered.
+     *
+     * @throws JMException if unregistration fails
+     */
+    public synchronized void unregister() throws JMException {
+        if (object_name != null) {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(object_name);
+            object_name = null;
+        }
+    }
+
+    /**
+     * @return round trip time in nanoseconds, measured for frames acknowledged after the first transmission
+     */
+    public MinHistogram getRtt() {
+        return rtt;
+    }
+
+    /**
+     * @return time from queueFrame() until the frame is acknowledged, in nanoseconds
+     */
+    public MinHistogram getAckLatency() {
+        return ack_latency;
+    }
+
+    /**
+     * @return transport frames sent for the first time
+     */
+    @Override
+    public long getFramesSent() {
+        return frames_sent.get();
+    }
+
+    /**
+     * @return transport frames sent again, on timeout or NACK
+     */
+    @Override
+    public long getFramesRetransmitted() {
+        return frames_retransmitted.get();
+    }
+
+    /**
+     * @return frames delivered to the application, transport and non-transport
+     */
+    @Override
+    public long getFramesReceived() {
+        return frames_received.get();
+    }
+
+    /**
+     * @return transport frames received again, already delivered or stashed
+     */
+    @Override
+    public long getDuplicateFrames() {
+        return duplicate_frames.get();
+    }
+
+    /**
+     * @return transport frames dropped as outside of receive window, duplicates included
+     */
+    @Override
+    public long getSequenceMismatchDrops() {
+        return sequence_mismatch_drops.get();
+    }
+
+    /**
+     * @return frames not accepted because receive publisher buffer was full, see MinTransport.receivePublisher()
+     */
+    @Override
+    public long getReceiverBackpressureDrops() {
+        return receiver_backpressure_drops.get();
+    }
+
+    /**
+     * @return frames rejected by queueFrame() because transport FIFO was full
+     */
+    @Override
+    public long getDroppedFrames() {
+        return dropped_frames.get();
+    }
+
+    /**
+     * @return frames rejected because FIFO of their priority was full, by priority level
+     */
+    @Override
+    public long[] getDroppedFramesByPriority() {
+        final long[] dropped = new long[dropped_frames_by_priority.length()];
+        for (int i = 0; i < dropped.length; i++) {
+            dropped[i] = dropped_frames_by_priority.get(i);
+        }
+        return dropped;
+    }
+
+    /**
+     * @return ACK frames sent, NACKs and keep-alives included
+     */
+    @Override
+    public long getAcksSent() {
+        return acks_sent.get();
+    }
+
+    @Override
+    public long getNacksSent() {
+        return nacks_sent.get();
+    }
+
+    /**
+     * @return ACK frames requesting retransmits
+     */
+    @Override
+    public long getNacksReceived() {
+        return nacks_received.get();
+    }
+
+    /**
+     * @return ACK frames acknowledging frames outside of send window
+     */
+    @Override
+    public long getSpuriousAcks() {
+        return spurious_acks.get();
+    }
+
+    @Override
+    public long getResetsSent() {
+        return resets_sent.get();
+    }
+
+    @Override
+    public long getResetsReceived() {
+        return resets_received.get();
+    }
+
+    /**
+     * @return frames dropped because of checksum mismatch
+     */
+    @Override
+    public long getCrcErrors() {
+        return crc_errors.get();
+    }
+
+    /**
+     * @return frames with valid checksum dropped because EOF byte was missing
+     */
+    @Override
+    public long getMissingEofErrors() {
+        return missing_eof_errors.get();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytes_sent.get();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytes_received.get();
+    }
+
+    @Override
+    public long getSerialWrites() {
+        return serial_writes.get();
+    }
+
+    /**
+     * @return payload bytes of frames with compressed minId, before compression
+     */
+    @Override
+    public long getBytesBeforeCompression() {
+        return bytes_before_compression.get();
+    }
+
+    /**
+     * @return payload bytes of frames with compressed minId, after compression
+     */
+    @Override
+    public long getBytesAfterCompression() {
+        return bytes_after_compression.get();
+    }
+
+    /**
+     * @return received frames of compressed minId dropped because they could not be decompressed
+     */
+    @Override
+    public long getDecompressionErrors() {
+        return decompression_errors.get();
+    }
+
+    /**
+     * @return frames in transport FIFO after last poll, sent or waiting
+     */
+    @Override
+    public int getTransportFifoDepth() {
+        return transport_fifo_depth;
+    }
+
+    @Override
+    public int getLongestTransportFifo() {
+        return longest_transport_fifo;
+    }
+
+    /**
+     * @return retransmitted frames per frame sent for the first time
+     */
+    @Override
+    public double getRetransmitRatio() {
+        final long sent = getFramesSent();
+        return sent == 0 ? 0 : getFramesRetransmitted() / (double) sent;
+    }
+
+    @Override
+    public double getRttMeanUs() {
+        return rtt.getMean() / 1000;
+    }
+
+    @Override
+    public long getRttP50Us() {
+        return TimeUnit.NANOSECONDS.toMicros(rtt.getValueAtPercentile(50));
+    }
+
+    @Override
+    public long getRttP99Us() {
+        return TimeUnit.NANOSECONDS.toMicros(rtt.getValueAtPercentile(99));
+    }
+
+    @Override
+    public long getRttMaxUs() {
+        return TimeUnit.NANOSECONDS.toMicros(rtt.getMax());
+    }
+
+    @Override
+    public double getAckLatencyMeanUs() {
+        return ack_latency.getMean() / 1000;
+    }
+
+    @Override
+    public long getAckLatencyP50Us() {
+        return TimeUnit.NANOSECONDS.toMicros(ack_latency.getValueAtPercentile(50));
+    }
+
+    @Override
+    public long getAckLatencyP99Us() {
+        return TimeUnit.NANOSECONDS.toMicros(ack_latency.getValueAtPercentile(99));
+    }
+
+    @Override
+    public long getAckLatencyMaxUs() {
+        return TimeUnit.NANOSECONDS.toMicros(ack_latency.getMax());
+    }
+
+    @Override
+    public String toString() {
+        return "<MinLinkMetrics: sent["+getFramesSent()+"] retransmitted["+getFramesRetransmitted()
+            +"] received["+getFramesReceived()+"] crc errors["+getCrcErrors()+"] rtt p99["+getRttP99Us()+" us]>";
+    }
+
+    // # Updates, driver thread only unless noted
+
+    private static void add(final AtomicLong counter, final long n) {
+        counter.lazySet(counter.get() + n);
+    }
+
+    void frame_sent(final boolean retransmit) {
+        add(retransmit ? frames_retransmitted : frames_sent, 1);
+    }
+
+    void frames_received(final int n) {
+        add(frames_received, n);
+    }
+
+    void duplicate_frame() {
+        add(duplicate_frames, 1);
+    }
+
+    void sequence_mismatch_drop() {
+        add(sequence_mismatch_drops, 1);
+    }
+
+    void receiver_backpressure_drop() {
+        add(receiver_backpressure_drops, 1);
+    }
+
+    // # any thread
+    void frame_dropped(final int priority) {
+        dropped_frames.incrementAndGet();
+        dropped_frames_by_priority.incrementAndGet(priority);
+    }
+
+    void ack_sent() {
+        add(acks_sent, 1);
+    }
+
+    void nack_sent() {
+        add(nacks_sent, 1);
+    }
+
+    void nack_received() {
+        add(nacks_received, 1);
+    }
+
+    void spurious_ack() {
+        add(spurious_acks, 1);
+    }
+
+    void reset_sent() {
+        add(resets_sent, 1);
+    }
+
+    void reset_received() {
+        add(resets_received, 1);
+    }
+
+    // # decoder keeps totals
+    void decoder_errors(final long crc, final long missing_eof) {
+        crc_errors.lazySet(crc);
+        missing_eof_errors.lazySet(missing_eof);
+    }
+
+    void bytes_received(final int n) {
+        add(bytes_received, n);
+    }
+
+    void serial_write(final int n) {
+        add(bytes_sent, n);
+        add(serial_writes, 1);
+    }
+
+    void frame_compressed(final int before, final int after) {
+        add(bytes_before_compression, before);
+        add(bytes_after_compression, after);
+    }
+
+    void decompression_error() {
+        add(decompression_errors, 1);
+    }
+
+    void transport_fifo_depth(final int depth) {
+        transport_fifo_depth = depth;
+        if (depth > longest_transport_fifo) {
+            longest_transport_fifo = depth;
+        }
+    }
+
+    void rtt_measured(final long rtt_ns) {
+        if (histograms_enabled) {
+            rtt.record(rtt_ns);
+        }
+    }
+
+    void frame_acknowledged(final long latency_ns) {
+        if (histograms_enabled) {
+            ack_latency.record(latency_ns);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package pl.skifosoft.minprotocol;
+
+/**
+ * JMX view of MinLinkMetrics. Times are in microseconds.
+ */
+public interface MinLinkMetricsMBean {
+
+    long getFramesSent();
+
+    long getFramesRetransmitted();
+
+    long getFramesReceived();
+
+    long getDuplicateFrames();
+
+    long getSequenceMismatchDrops();
+
+    long getReceiverBackpressureDrops();
+
+    long getDroppedFrames();
+
+    long[] getDroppedFramesByPriority();
+
+    long getAcksSent();
+
+    long getNacksSent();
+
+    long getNacksReceived();
+
+    long getSpuriousAcks();
+
+    long getResetsSent();
+
+    long getResetsReceived();
+
+    long getCrcErrors();
+
+    long getMissingEofErrors();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getSerialWrites();
+
+    long getBytesBeforeCompression();
+
+    long getBytesAfterCompression();
+
+    long getDecompressionErrors();
+
+    int getTransportFifoDepth();
+
+    int getLongestTransportFifo();
+
+    double getRetransmitRatio();
+
+    double getRttMeanUs();
+
+    long getRttP50Us();
+
+    long getRttP99Us();
+
+    long getRttMaxUs();
+
+    double getAckLatencyMeanUs();
+
+    long getAckLatencyP50Us();
+
+    long getAckLatencyP99Us();
+
+    long getAckLatencyMaxUs();
+}
@@ -0,0 +1,128 @@
+package pl.skifosoft.minprotocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reassembles messages sent by MinMessageSender into a preallocated buffer, heap, direct
+ * or mapped file, so large transfers are never copied again after the frame is received.
+ * Handles single minId, pass every received frame to offer(), frames of other minIds are left
+ * to the caller. Not thread safe, use from the thread polling the transport.
+ */
+public final class MinMessageReassembler {
+
+    /**
+     * Receives complete messages.
+     */
+    public interface Listener {
+        /**
+         * @param minId minId of the message
+         * @param message view of reassembly buffer from 0 to message length, valid until
+         *                the next fragment is offered
+         */
+        void messageReceived(int minId, ByteBuffer message);
+    }
+
+    private static final int IDLE = 0;
+    private static final int RECEIVING = 1;
+    private static final int SKIPPING = 2;
+
+    private final int min_id;
+    private final ByteBuffer buffer;
+    private final Listener listener;
+
+    private int state = IDLE;
+    private long expected_length;
+    private long dropped_messages = 0;
+
+    /**
+     * @param minId user defined id of fragment frames (must be 0 - 63 range)
+     * @param buffer reassembly buffer, messages longer than its capacity are dropped
+     * @param listener receiver of complete messages
+     * @throws MinIdException
+     */
+    public MinMessageReassembler(final int minId, final ByteBuffer buffer, final Listener listener) throws MinIdException {
+        if (minId < 0 || minId >= 64)
+            throw new MinIdException("minId out of range: "+minId);
+        this.min_id = minId;
+        this.buffer = buffer;
+        this.listener = listener;
+    }
+
+    /**
+     * Consume fragment frame, frames taken are released by MinFrame.release().
+     *
+     * @param frame received frame
+     * @return true if frame was a fragment of this reassembler, false if it has other minId
+     */
+    public boolean offer(final MinFrame frame) {
+        if (frame.getId() != min_id) {
+            return false;
+        }
+        try {
+            fragment_received(frame.getPayload(), frame.getLength());
+        } finally {
+            frame.release();
+        }
+        return true;
+    }
+
+    /**
+     * @return number of messages dropped because they were too long for the buffer,
+     *         interrupted by transport reset, aborted by the sender or malformed
+     */
+    public long getDroppedMessages() {
+        return dropped_messages;
+    }
+
+    private void fragment_received(final byte[] payload, final int length) {
+        if (length < MinMessageSender.HEADER_SIZE) {
+            drop();
+            return;
+        }
+        final int flags = payload[0];
+        int offset = MinMessageSender.HEADER_SIZE;
+
+        if ((flags & MinMessageSender.FIRST) != 0) {
+            // # new message interrupts previous one, rest of it was lost in transport reset
+            if (state != IDLE || length < MinMessageSender.FIRST_HEADER_SIZE) {
+                drop();
+                if (length < MinMessageSender.FIRST_HEADER_SIZE) {
+                    return;
+                }
+            }
+            expected_length = ((payload[1] & 0xffL) << 24) | ((payload[2] & 0xffL) << 16)
+                            | ((payload[3] & 0xffL) << 8) | (payload[4] & 0xffL);
+            offset = MinMessageSender.FIRST_HEADER_SIZE;
+            buffer.clear();
+            state = (expected_length <= buffer.capacity()) ? RECEIVING : SKIPPING;
+        } else if (state == IDLE) {
+            // # tail of message started before transport reset, already counted
+            return;
+        }
+
+        if (state == RECEIVING) {
+            final int data_length = length - offset;
+            if (buffer.position() + data_length > expected_length) {
+                drop();
+                return;
+            }
+            buffer.put(payload, offset, data_length);
+        }
+
+        if ((flags & MinMessageSender.LAST) != 0) {
+            if (state == RECEIVING && buffer.position() == expected_length) {
+                state = IDLE;
+                final ByteBuffer message = buffer.duplicate();
+                message.flip();
+                listener.messageReceived(min_id, message);
+            } else {
+                drop();
+            }
+        }
+    }
+
+    private void drop() {
+        dropped_messages++;
+        state = IDLE;
+    }
+}
@@ -0,0 +1,206 @@
+package pl.skifosoft.minprotocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Sends messages longer than a single frame, e.g. firmware images, as a run of transport frames
+ * with the same minId, reassembled by MinMessageReassembler on the other end.
+ * <p>
+ * Each fragment starts with a flags byte, the first one also with message length (4 bytes,
+ * big endian), frames are delivered in order so nothing else is needed. Source is read straight
+ * into frames through one frame sized buffer, so files and mapped buffers are never copied to heap
+ * as a whole. Fragments are queued as fast as transport FIFO takes them, so transfer uses the
+ * whole send window, increase MinTransportConfig.Builder.maxWindowSize() for long links.
+ * <p>
+ * send() blocks while transport FIFO is full, so it must not be called from the driver thread
+ * of the transport: nothing would poll to make room and every fragment would wait the whole
+ * awaitCapacityMs and fail.
+ * <p>
+ * Use minId reserved for messages, one sender per minId at a time. Not thread safe.
+ */
+public final class MinMessageSender {
+
+    static final int FIRST = 0x01;
+    static final int LAST = 0x02;
+    static final int FIRST_HEADER_SIZE = 5;
+    static final int HEADER_SIZE = 1;
+    static final long MAX_MESSAGE_SIZE = 0xffffffffL;
+
+    private final MinTransport transport;
+    private final long await_capacity_ms;
+    private byte[] fragment = new byte[MinFrameDecoder.MAX_PAYLOAD];
+
+    // # fills fragment data from message source
+    private interface Source {
+        void read(byte[] dst, int offset, int length) throws IOException;
+    }
+
+    /**
+     * @param transport transport to send fragments through
+     * @param awaitCapacityMs longest time to wait for room in transport FIFO for a single fragment
+     */
+    public MinMessageSender(final MinTransport transport, final long awaitCapacityMs) {
+        this.transport = transport;
+        this.await_capacity_ms = awaitCapacityMs;
+    }
+
+    /**
+     * Queue remaining bytes of the buffer as a message, heap, direct or mapped.
+     * Buffer position is not changed. Returns when the last fragment is queued
+     * or, if the message was aborted, with the failed future, see send(int, FileChannel).
+     *
+     * @param minId user defined id of the frames (must be 0 - 63 range)
+     * @param message message bytes, up to 4 GB - 1
+     * @return future completed when the whole message is acknowledged, failed if it was aborted
+     * @throws MinIdException
+     */
+    public CompletableFuture<Void> send(final int minId, final ByteBuffer message) throws MinIdException {
+        final ByteBuffer src = message.duplicate();
+        try {
+            return send(minId, src.remaining(), new Source() {
+                @Override
+                public void read(byte[] dst, int offset, int length) {
+                    src.get(dst, offset, length);
+                }
+            });
+        } catch (IOException e) {
+            throw new AssertionError(e); // # buffer source does not throw
+        }
+    }
+
+    /**
+     * Queue the whole file as a message, read in fragments with positional reads,
+     * file position is not changed. Returns when the last fragment is queued
+     * or, if the message was aborted, with the failed future.
+     * <p>
+     * Message is aborted when a fragment is dropped by the transport, fails with its exception,
+     * or when a fragment can not be queued, fails with FifoFullException if it waited for room
+     * in FIFO longer than awaitCapacityMs or InterruptedException if the thread was interrupted
+     * (interrupt status is set again). Remaining fragments are not queued then and an empty last
+     * fragment tells the reassembler to drop the part it got, if there is room for it.
+     *
+     * @param minId user defined id of the frames (must be 0 - 63 range)
+     * @param file file to send, up to 4 GB - 1
+     * @return future completed when the whole message is acknowledged, failed if it was aborted
+     * @throws MinIdException
+     * @throws IOException if file can not be read or gets shorter, message is aborted
+     */
+    public CompletableFuture<Void> send(final int minId, final FileChannel file) throws MinIdException, IOException {
+        return send(minId, file.size(), new Source() {
+            private long position = 0;
+            private ByteBuffer buffer = null;
+
+            @Override
+            public void read(byte[] dst, int offset, int length) throws IOException {
+                // # wrapper made once per message, dst is the fragment buffer
+                if (buffer == null || buffer.array() != dst) {
+                    buffer = ByteBuffer.wrap(dst);
+                }
+                buffer.clear().position(offset).limit(offset + length);
+                while (buffer.hasRemaining()) {
+                    final int n = file.read(buffer, position);
+                    if (n < 0)
+                        throw new EOFException("file truncated at "+position);
+                    position += n;
+                }
+            }
+        });
+    }
+
+    private CompletableFuture<Void> send(final int minId, final long length, final Source source)
+        throws MinIdException, IOException {
+
+        if (length > MAX_MESSAGE_SIZE)
+            throw new IllegalArgumentException("message length: "+length+", max "+MAX_MESSAGE_SIZE);
+
+        // # one byte less for compressed minId
+        final int max_payload = transport.max_payload(minId);
+        if (fragment.length != max_payload) {
+            fragment = new byte[max_payload];
+        }
+
+        final CompletableFuture<Void> message = new CompletableFuture<Void>();
+        // # fragments not acknowledged yet, plus one until the last fragment is queued
+        final AtomicLong pending = new AtomicLong(1);
+        final BiConsumer<Void, Throwable> fragment_done = new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(final Void ignored, final Throwable failure) {
+                if (failure != null) {
+                    message.completeExceptionally(failure);
+                } else if (pending.decrementAndGet() == 0) {
+                    message.complete(null);
+                }
+            }
+        };
+
+        long remaining = length;
+        boolean first = true;
+        do {
+            // # stop at the first dropped fragment, the rest could not be reassembled
+            if (message.isDone()) {
+                abort(minId, first);
+                return message;
+            }
+            final int header_size = first ? FIRST_HEADER_SIZE : HEADER_SIZE;
+            final int chunk = (int) Math.min(remaining, fragment.length - header_size);
+            remaining -= chunk;
+
+            // # transport copies first header_size + chunk bytes, fragment buffer is reused
+            fragment[0] = (byte) ((first ? FIRST : 0) | (remaining == 0 ? LAST : 0));
+            if (first) {
+                fragment[1] = (byte) (length >>> 24);
+                fragment[2] = (byte) (length >>> 16);
+                fragment[3] = (byte) (length >>> 8);
+                fragment[4] = (byte) length;
+            }
+            try {
+                source.read(fragment, header_size, chunk);
+            } catch (IOException e) {
+                message.completeExceptionally(e);
+                abort(minId, first);
+                throw e;
+            }
+
+            pending.incrementAndGet();
+            try {
+                transport.send_async(minId, fragment, header_size + chunk, await_capacity_ms).whenComplete(fragment_done);
+            } catch (PayloadTooLongException e) {
+                throw new AssertionError(e); // # fragments fit in a frame
+            } catch (FifoFullException e) {
+                message.completeExceptionally(e);
+                abort(minId, first);
+                return message;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                message.completeExceptionally(e);
+                abort(minId, first);
+                return message;
+            }
+            first = false;
+        } while (remaining > 0);
+        fragment_done.accept(null, null);
+        return message;
+    }
+
+    // # fragments already queued are sent, empty last fragment makes the reassembler drop them
+    // # at once instead of when the next message starts, not queued if FIFO is still full
+    private void abort(final int minId, final boolean first) throws MinIdException {
+        if (first) {
+            return; // # nothing was queued
+        }
+        fragment[0] = (byte) LAST;
+        try {
+            transport.send_async(minId, fragment, HEADER_SIZE, 0);
+        } catch (FifoFullException e) {
+            // # dropped with the next message
+        } catch (PayloadTooLongException | InterruptedException e) {
+            throw new AssertionError(e); // # one byte, no waiting
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package pl.skifosoft.minprotocol;
+
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of transport frame payloads for minIds enabled in MinTransportConfig.
+ * Payload is raw deflate with preset dictionary of the minId followed by previous payload
+ * of the same minId, so frames similar to previous one shrink to a few bytes. First payload byte
+ * tells whether the rest is deflated or stored, stored if deflate does not make it shorter.
+ * <p>
+ * Both ends must enable the same minIds with the same dictionaries. Frames are compressed when
+ * they enter transport FIFO and decompressed when accepted in sequence order, so both ends see
+ * the same chain of previous payloads, and the chain starts again on every transport reset.
+ * First deflated payload of a minId after reset carries Adler-32 of the preset dictionary,
+ * decompression fails if it differs from the one of this end, stored payloads need no dictionary.
+ * Driver thread only.
+ */
+final class MinPayloadCodec {
+
+    /**
+     * Largest payload of a compressed minId, one byte is taken by the flag.
+     */
+    static final int MAX_PAYLOAD = MinFrameDecoder.MAX_PAYLOAD - 1;
+    static final int MAX_DICTIONARY = 32768 - MAX_PAYLOAD; // # deflate window
+
+    private static final byte STORED = 0;
+    private static final byte DEFLATED = 1;
+    private static final byte CHECKED = 2; // # deflated, preceded by 4 bytes of dictionary check
+    private static final int CHECK_SIZE = 4;
+
+    // # per minId preset dictionary followed by previous payload, null if not compressed
+    private final byte[][] tx_dictionaries = new byte[64][];
+    private final int[] tx_dictionary_lengths = new int[64];
+    private final byte[][] rx_dictionaries = new byte[64][];
+    private final int[] rx_dictionary_lengths = new int[64];
+    private final int[] preset_lengths = new int[64];
+    private final int[] preset_checks = new int[64];
+    // # dictionary check sent or received since reset
+    private final boolean[] tx_checked = new boolean[64];
+    private final boolean[] rx_checked = new boolean[64];
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] buffer = new byte[MinFrameDecoder.MAX_PAYLOAD];
+
+    MinPayloadCodec(final byte[][] dictionaries) {
+        for (int id = 0; id < 64; id++) {
+            final byte[] preset = dictionaries[id];
+            if (preset != null) {
+                tx_dictionaries[id] = new byte[preset.length + MAX_PAYLOAD];
+                rx_dictionaries[id] = new byte[preset.length + MAX_PAYLOAD];
+                System.arraycopy(preset, 0, tx_dictionaries[id], 0, preset.length);
+                System.arraycopy(preset, 0, rx_dictionaries[id], 0, preset.length);
+                preset_lengths[id] = preset.length;
+                final Adler32 adler = new Adler32();
+                adler.update(preset, 0, preset.length);
+                preset_checks[id] = (int) adler.getValue();
+            }
+        }
+        reset();
+    }
+
+    boolean enabled(final int minId) {
+        return tx_dictionaries[minId] != null;
+    }
+
+    /**
+     * Forget previous payloads, on transport reset.
+     */
+    void reset() {
+        System.arraycopy(preset_lengths, 0, tx_dictionary_lengths, 0, 64);
+        System.arraycopy(preset_lengths, 0, rx_dictionary_lengths, 0, 64);
+        Arrays.fill(tx_checked, false);
+        Arrays.fill(rx_checked, false);
+    }
+
+    /**
+     * Replace payload of a queued frame of enabled minId, at most MAX_PAYLOAD long, with compressed one.
+     */
+    void compress(final MinFrame frame) {
+        final int id = frame.getId();
+        final byte[] dictionary = tx_dictionaries[id];
+        final int length = frame.length;
+
+        deflater.reset();
+        if (tx_dictionary_lengths[id] > 0) {
+            deflater.setDictionary(dictionary, 0, tx_dictionary_lengths[id]);
+        }
+        deflater.setInput(frame.payload, 0, length);
+        deflater.finish();
+        // # deflated only if it fits in less than stored payload, with dictionary check the first time
+        final int header_size = tx_checked[id] ? 1 : 1 + CHECK_SIZE;
+        final int room = length + 1 - header_size;
+        final int deflated = (room > 0) ? deflater.deflate(buffer, header_size, room) : 0;
+        final boolean shorter = room > 0 && deflater.finished() && header_size + deflated < length + 1;
+
+        // # previous payload for the next frame, before payload is overwritten
+        System.arraycopy(frame.payload, 0, dictionary, preset_lengths[id], length);
+        tx_dictionary_lengths[id] = preset_lengths[id] + length;
+
+        if (shorter) {
+            if (tx_checked[id]) {
+                buffer[0] = DEFLATED;
+            } else {
+                buffer[0] = CHECKED;
+                put_int(buffer, 1, preset_checks[id]);
+                tx_checked[id] = true;
+            }
+            System.arraycopy(buffer, 0, frame.payload, 0, header_size + deflated);
+            frame.length = header_size + deflated;
+        } else {
+            System.arraycopy(frame.payload, 0, frame.payload, 1, length);
+            frame.payload[0] = STORED;
+            frame.length = length + 1;
+        }
+    }
+
+    /**
+     * Restore payload of a frame of enabled minId received in sequence order.
+     *
+     * @return false if payload is malformed or dictionaries of the two ends differ,
+     *         previous payloads are out of step then until reset
+     */
+    boolean decompress(final MinFrame frame) {
+        final int id = frame.getId();
+        final byte[] dictionary = rx_dictionaries[id];
+        if (frame.length < 1) {
+            return false;
+        }
+
+        final int length;
+        final byte flag = frame.payload[0];
+        if (flag == DEFLATED || flag == CHECKED) {
+            int header_size = 1;
+            if (flag == CHECKED) {
+                if (frame.length < 1 + CHECK_SIZE || get_int(frame.payload, 1) != preset_checks[id]) {
+                    return false;
+                }
+                header_size += CHECK_SIZE;
+                rx_checked[id] = true;
+            } else if (!rx_checked[id]) {
+                return false; // # no proof that dictionaries match
+            }
+            inflater.reset();
+            if (rx_dictionary_lengths[id] > 0) {
+                inflater.setDictionary(dictionary, 0, rx_dictionary_lengths[id]);
+            }
+            inflater.setInput(frame.payload, header_size, frame.length - header_size);
+            try {
+                length = inflater.inflate(buffer, 0, buffer.length);
+            } catch (DataFormatException e) {
+                return false;
+            }
+            if (!inflater.finished() || length > MAX_PAYLOAD) {
+                return false;
+            }
+        } else if (flag == STORED) {
+            length = frame.length - 1;
+            System.arraycopy(frame.payload, 1, buffer, 0, length);
+        } else {
+            return false;
+        }
+
+        System.arraycopy(buffer, 0, dictionary, preset_lengths[id], length);
+        rx_dictionary_lengths[id] = preset_lengths[id] + length;
+
+        // # frames not from the pool have payload array of exact length
+        if (frame.payload.length < length) {
+            frame.payload = new byte[length];
+        }
+        System.arraycopy(buffer, 0, frame.payload, 0, length);
+        frame.length = length;
+        return true;
+    }
+
+    private static void put_int(final byte[] dst, final int offset, final int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+
+    private static int get_int(final byte[] src, final int offset) {
+        return ((src[offset] & 0xff) << 24) | ((src[offset + 1] & 0xff) << 16)
+             | ((src[offset + 2] & 0xff) << 8) | (src[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,150 @@
+package pl.skifosoft.minprotocol;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publisher of frames received by a transport, see MinTransport.receivePublisher().
+ * <p>
+ * All signals are sent by the driver thread during poll(). Frames the subscriber did not
+ * request yet wait in a buffer of bufferSize frames, when it is full the transport stops
+ * accepting frames, so the other end has to retransmit them later.
+ * One subscriber at a time, cancelled subscription may be replaced by a new one.
+ */
+final class MinReceivePublisher implements Flow.Publisher<MinFrame> {
+
+    private final MinTransport transport;
+    private final int buffer_size;
+
+    // # set by subscribe(), taken over by the driver
+    private final AtomicReference<Flow.Subscriber<? super MinFrame>> pending = new AtomicReference<Flow.Subscriber<? super MinFrame>>();
+
+    // # driver thread only
+    private Subscription subscription = null;
+    private final ArrayDeque<MinFrame> backlog = new ArrayDeque<MinFrame>();
+
+    MinReceivePublisher(final MinTransport transport, final int bufferSize) {
+        this.transport = transport;
+        this.buffer_size = bufferSize;
+    }
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super MinFrame> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException("subscriber");
+        if (!pending.compareAndSet(null, subscriber)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("transport already has a subscriber"));
+            return;
+        }
+        transport.wakeup();
+    }
+
+    /**
+     * @return true if pending frames plus another one may be accepted, driver thread
+     */
+    boolean has_room(final int pending_frames) {
+        if (subscription == null) {
+            return true;
+        }
+        final long queued = backlog.size() + pending_frames;
+        return queued < buffer_size || subscription.demand.get() > queued;
+    }
+
+    /**
+     * @return true if frames can be delivered or subscription changed, driver thread
+     */
+    boolean has_work() {
+        if (subscription == null) {
+            return pending.get() != null;
+        }
+        return subscription.cancelled || subscription.illegal_request || (!backlog.isEmpty() && subscription.demand.get() > 0);
+    }
+
+    /**
+     * Take received frames, deliver them as far as demand allows. Driver thread.
+     *
+     * @return false if there is no subscriber, frames are left in the list then
+     */
+    boolean publish(final ArrayList<MinFrame> frames) {
+        if (subscription == null) {
+            final Flow.Subscriber<? super MinFrame> subscriber = pending.get();
+            if (subscriber == null) {
+                return false;
+            }
+            subscription = new Subscription(subscriber);
+            subscriber.onSubscribe(subscription);
+        }
+        for (int i = 0; i < frames.size(); i++) {
+            backlog.add(frames.get(i));
+        }
+        frames.clear();
+
+        final Subscription s = subscription;
+        if (s.illegal_request && !s.cancelled) {
+            s.cancelled = true;
+            s.subscriber.onError(new IllegalArgumentException("non-positive request, rule 3.9"));
+        }
+        while (!s.cancelled && !backlog.isEmpty()) {
+            final long demand = s.demand.get();
+            if (demand <= 0) {
+                break;
+            }
+            if (demand != Long.MAX_VALUE) {
+                s.demand.decrementAndGet();
+            }
+            s.subscriber.onNext(backlog.poll());
+        }
+        if (s.cancelled) {
+            MinFrame frame;
+            while ((frame = backlog.poll()) != null) {
+                frame.release();
+            }
+            subscription = null;
+            pending.set(null);
+        }
+        return true;
+    }
+
+    private final class Subscription implements Flow.Subscription {
+
+        final Flow.Subscriber<? super MinFrame> subscriber;
+        final AtomicLong demand = new AtomicLong(0);
+        volatile boolean cancelled = false;
+        volatile boolean illegal_request = false;
+
+        Subscription(final Flow.Subscriber<? super MinFrame> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                illegal_request = true;
+            } else {
+                long current;
+                do {
+                    current = demand.get();
+                } while (!demand.compareAndSet(current, (current + n < 0) ? Long.MAX_VALUE : current + n));
+            }
+            transport.wakeup();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            transport.wakeup();
+        }
+    }
+}
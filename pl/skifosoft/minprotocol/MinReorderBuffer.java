@@ -0,0 +1,87 @@
+package pl.skifosoft.minprotocol;
+
+/**
+ * Out of order frames waiting for missing ones, indexed by sequence number.
+ * Bitmap of occupied slots gives the earliest stashed frame in constant time.
+ * Not thread safe, owned by the thread driving the transport.
+ */
+final class MinReorderBuffer {
+
+    private final MinFrame[] frames = new MinFrame[256];
+    private final long[] present = new long[4];
+    private int count = 0;
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    boolean contains(final int seq) {
+        return (present[seq >>> 6] & (1L << seq)) != 0;
+    }
+
+    /**
+     * Stash frame, frame previously stashed under the same sequence number is released.
+     */
+    void put(final int seq, final MinFrame frame) {
+        final MinFrame replaced = frames[seq];
+        if (replaced != null) {
+            replaced.release();
+        } else {
+            present[seq >>> 6] |= 1L << seq;
+            count++;
+        }
+        frames[seq] = frame;
+    }
+
+    /**
+     * @return frame stashed under seq or null, left in place
+     */
+    MinFrame peek(final int seq) {
+        return frames[seq];
+    }
+
+    /**
+     * @return frame stashed under seq or null
+     */
+    MinFrame take(final int seq) {
+        final MinFrame frame = frames[seq];
+        if (frame != null) {
+            frames[seq] = null;
+            present[seq >>> 6] &= ~(1L << seq);
+            count--;
+        }
+        return frame;
+    }
+
+    /**
+     * @return first stashed sequence number at or after from, modulo 256, or -1 if empty
+     */
+    int earliest(final int from) {
+        if (count == 0) {
+            return -1;
+        }
+        final int first_word = from >>> 6;
+        // # bits at or after from in its own word, then following words, then wrap to bits before from
+        long bits = present[first_word] & (-1L << from);
+        for (int i = 0; i <= 4; i++) {
+            if (bits != 0) {
+                return (((first_word + i) & 3) << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            bits = present[(first_word + i + 1) & 3];
+        }
+        return -1;
+    }
+
+    /**
+     * Release and remove all stashed frames.
+     */
+    void clear() {
+        for (int seq = earliest(0); seq != -1; seq = earliest(seq)) {
+            take(seq).release();
+        }
+    }
+}
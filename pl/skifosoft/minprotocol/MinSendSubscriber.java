@@ -0,0 +1,113 @@
+package pl.skifosoft.minprotocol;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Subscriber queueing payloads as transport frames, see MinTransport.sendSubscriber().
+ * <p>
+ * Demand is the only flow control: it requests maxInFlight payloads ahead and one more
+ * for every acknowledged frame, so upstream produces only as fast as the link delivers and
+ * is never blocked. If the transport FIFO is full anyway, filled by other producers,
+ * the stream fails fast with FifoFullException instead of waiting for room.
+ * <p>
+ * getCompletion() tells how the stream ended: completed when upstream completed and all its
+ * frames were acknowledged, failed with upstream error, with the exception of the payload which
+ * could not be queued, or with TransportResetException of a dropped frame. Subscription is
+ * cancelled in the last two cases, frames already queued are still sent in all of them.
+ */
+public final class MinSendSubscriber implements Flow.Subscriber<byte[]> {
+
+    private final MinTransport transport;
+    private final int min_id;
+    private final int max_in_flight;
+    private final CompletableFuture<Void> completion = new CompletableFuture<Void>();
+    private final AtomicInteger in_flight = new AtomicInteger(0);
+    private volatile Flow.Subscription subscription = null;
+    private volatile boolean upstream_done = false;
+    private volatile boolean cancelled = false;
+
+    // # runs off the driver thread, upstream may call onNext() from request()
+    private final BiConsumer<Void, Throwable> frame_done = new BiConsumer<Void, Throwable>() {
+        @Override
+        public void accept(Void result, Throwable error) {
+            if (error != null) {
+                // # frames after the dropped one could not be delivered in order
+                fail(error);
+                return;
+            }
+            if (in_flight.decrementAndGet() == 0 && upstream_done) {
+                completion.complete(null);
+            }
+            if (!cancelled) {
+                subscription.request(1);
+            }
+        }
+    };
+
+    MinSendSubscriber(final MinTransport transport, final int minId, final int maxInFlight) {
+        this.transport = transport;
+        this.min_id = minId;
+        this.max_in_flight = maxInFlight;
+    }
+
+    /**
+     * @return future completed when upstream completed and all frames are acknowledged,
+     *         failed when the stream is aborted
+     */
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    @Override
+    public void onSubscribe(final Flow.Subscription s) {
+        if (subscription != null) {
+            s.cancel(); // # rule 2.5
+            return;
+        }
+        subscription = s;
+        s.request(max_in_flight);
+    }
+
+    @Override
+    public void onNext(final byte[] payload) {
+        if (cancelled) {
+            return;
+        }
+        in_flight.incrementAndGet();
+        final CompletableFuture<Void> future;
+        try {
+            future = transport.sendAsync(min_id, payload);
+        } catch (MinException e) {
+            in_flight.decrementAndGet();
+            fail(e);
+            return;
+        }
+        future.whenCompleteAsync(frame_done);
+    }
+
+    @Override
+    public void onError(final Throwable throwable) {
+        // # frames already queued are still sent
+        upstream_done = true;
+        completion.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        upstream_done = true;
+        if (in_flight.get() == 0) {
+            completion.complete(null);
+        }
+    }
+
+    private void fail(final Throwable error) {
+        completion.completeExceptionally(error);
+        if (!cancelled) {
+            cancelled = true;
+            subscription.cancel();
+        }
+    }
+}
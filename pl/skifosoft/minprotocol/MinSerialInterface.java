@@ -1,4 +1,7 @@
 package pl.skifosoft.minprotocol;
+
+import java.nio.ByteBuffer;
+
 /**
  * This interface must be implemented to enable simple serial port I/O.
  */
@@ -11,6 +14,22 @@ public interface MinSerialInterface {
      */
     void serialWrite(byte[] data);
 
+    /**
+     * Write remaining bytes of the buffer to the serial port. Blocking.
+     * On return buffer position equals its limit.
+     * MinTransport writes everything sent during a poll by this method, once per poll.
+     * Default implementation copies bytes into a new array and calls serialWrite(byte[]),
+     * so it allocates on every write, up to 4 KB. Override it to write from the buffer,
+     * e.g. from its backing array for heap buffers, to keep the output path allocation-free.
+     *
+     * @param data heap or direct buffer, bytes between position and limit are written
+     */
+    default void serialWrite(ByteBuffer data) {
+        final byte[] copy = new byte[data.remaining()];
+        data.get(copy);
+        serialWrite(copy);
+    }
+
     /**
      * Read all available bytes from serial port. Non blocking.
      *
@@ -18,4 +37,17 @@ public interface MinSerialInterface {
      */
     byte[] serialReadAll();
 
+    /**
+     * Register listener to be notified when new bytes are available to read.
+     * Listener may be invoked from any thread and must return quickly,
+     * it only wakes up thread waiting in MinTransport.poll(long).
+     * Default implementation does not support notifications.
+     *
+     * @param listener invoked after new bytes arrive
+     * @return true if notifications are supported, false otherwise
+     */
+    default boolean setDataListener(Runnable listener) {
+        return false;
+    }
+
 }
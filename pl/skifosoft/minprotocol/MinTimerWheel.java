@@ -0,0 +1,150 @@
+package pl.skifosoft.minprotocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel holding retransmit deadlines of frames in the send window.
+ * Deadlines are MinClock.nanoTime() based and rounded up to 1 ms ticks,
+ * deadlines further than one turn of the wheel wait in their slot for later turns.
+ * Frames are linked into slot lists through their own fields, so scheduling does not allocate.
+ * Not thread safe, owned by the thread driving the transport.
+ */
+final class MinTimerWheel {
+
+    private static final long tick_ns = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int wheel_size = 256; // # must be power of 2
+    private static final int mask = wheel_size - 1;
+
+    private final MinFrame[] slots = new MinFrame[wheel_size];
+    private long current_tick;
+    private int size = 0;
+
+    MinTimerWheel(final long now_ns) {
+        current_tick = Math.floorDiv(now_ns, tick_ns);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Schedule frame, or reschedule it if already scheduled.
+     */
+    void schedule(final MinFrame frame, final long deadline_ns) {
+
+        if (frame.timer_scheduled) {
+            cancel(frame);
+        }
+
+        // # round up, frame never expires before its deadline
+        long tick = -Math.floorDiv(-deadline_ns, tick_ns);
+        if (tick < current_tick) {
+            tick = current_tick;
+        }
+
+        final int slot = (int) (tick & mask);
+        frame.timer_deadline_ns = deadline_ns;
+        frame.timer_tick = tick;
+        frame.timer_prev = null;
+        frame.timer_next = slots[slot];
+        if (slots[slot] != null) {
+            slots[slot].timer_prev = frame;
+        }
+        slots[slot] = frame;
+        frame.timer_scheduled = true;
+        size++;
+    }
+
+    void cancel(final MinFrame frame) {
+
+        if (!frame.timer_scheduled) {
+            return;
+        }
+        if (frame.timer_prev != null) {
+            frame.timer_prev.timer_next = frame.timer_next;
+        } else {
+            slots[(int) (frame.timer_tick & mask)] = frame.timer_next;
+        }
+        if (frame.timer_next != null) {
+            frame.timer_next.timer_prev = frame.timer_prev;
+        }
+        frame.timer_next = null;
+        frame.timer_prev = null;
+        frame.timer_scheduled = false;
+        size--;
+    }
+
+    void clear() {
+        for (int i = 0; i < wheel_size; i++) {
+            MinFrame frame = slots[i];
+            while (frame != null) {
+                final MinFrame next = frame.timer_next;
+                frame.timer_next = null;
+                frame.timer_prev = null;
+                frame.timer_scheduled = false;
+                frame = next;
+            }
+            slots[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Removes all frames due at now_ns in one pass.
+     *
+     * @return first of expired frames chained through timer_next, or null
+     */
+    MinFrame expire(final long now_ns) {
+
+        final long now_tick = Math.floorDiv(now_ns, tick_ns);
+        MinFrame expired = null;
+
+        if (size > 0) {
+            // # after long sleep every slot is visited just once
+            final long last_tick = Math.min(now_tick, current_tick + mask);
+            for (long tick = current_tick; tick <= last_tick; tick++) {
+                MinFrame frame = slots[(int) (tick & mask)];
+                while (frame != null) {
+                    final MinFrame next = frame.timer_next;
+                    if (frame.timer_tick <= now_tick) {
+                        cancel(frame);
+                        frame.timer_next = expired;
+                        expired = frame;
+                    }
+                    frame = next;
+                }
+            }
+        }
+        current_tick = now_tick;
+        return expired;
+    }
+
+    /**
+     * @return earliest deadline of scheduled frames, or Long.MAX_VALUE if there is none
+     */
+    long next_deadline_ns() {
+
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        // # deadlines within one turn of the wheel are found by slot, later ones by full scan
+        for (long tick = current_tick; tick <= current_tick + mask; tick++) {
+            long earliest = Long.MAX_VALUE;
+            for (MinFrame frame = slots[(int) (tick & mask)]; frame != null; frame = frame.timer_next) {
+                if (frame.timer_tick == tick) {
+                    earliest = Math.min(earliest, frame.timer_deadline_ns);
+                }
+            }
+            if (earliest != Long.MAX_VALUE) {
+                return earliest;
+            }
+        }
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < wheel_size; i++) {
+            for (MinFrame frame = slots[i]; frame != null; frame = frame.timer_next) {
+                earliest = Math.min(earliest, frame.timer_deadline_ns);
+            }
+        }
+        return earliest;
+    }
+}
@@ -0,0 +1,139 @@
+package pl.skifosoft.minprotocol;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * Prints trace file written by MinWireTracer as a timeline, oldest record first.
+ * Times are relative to the first printed record.
+ * <p>
+ * Usage: MinTraceDump [-events] trace-file
+ * <br>
+ * -events prints protocol events only, without raw bytes.
+ */
+public final class MinTraceDump {
+
+    private static final String[] type_names = {
+        "?", "RX", "TX", "SEND", "RETRANSMIT", "RECEIVE", "ACK", "NACK", "ACK IN", "NACK IN",
+        "RESET", "RESET IN", "CRC ERROR", "EOF ERROR"
+    };
+
+    private MinTraceDump() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean events_only = false;
+        String file = null;
+        for (final String arg : args) {
+            if (arg.equals("-events")) {
+                events_only = true;
+            } else {
+                file = arg;
+            }
+        }
+        if (file == null) {
+            System.err.println("usage: MinTraceDump [-events] trace-file");
+            System.exit(2);
+        }
+        dump(Paths.get(file), events_only, System.out);
+    }
+
+    /**
+     * @param file trace file
+     * @param eventsOnly skip raw bytes
+     * @param out where to print
+     * @throws IOException if file can not be read or is not a trace file
+     */
+    public static void dump(final Path file, final boolean eventsOnly, final PrintStream out) throws IOException {
+
+        final ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        for (int i = 0; i < MinWireTracer.MAGIC.length; i++) {
+            if (buffer.limit() < MinWireTracer.RECORD_SIZE || buffer.get(i) != MinWireTracer.MAGIC[i])
+                throw new IOException("not a MIN trace file: "+file);
+        }
+        final int version = buffer.getInt(MinWireTracer.VERSION_OFFSET);
+        if (version != MinWireTracer.VERSION)
+            throw new IOException("unsupported trace version: "+version);
+        final int records = buffer.getInt(MinWireTracer.RECORDS_OFFSET);
+        if ((long) (records + 1) * MinWireTracer.RECORD_SIZE > buffer.limit())
+            throw new IOException("truncated trace file: "+file);
+
+        // # record numbers are unique, sort slots by them
+        final long[] order = new long[records];
+        int count = 0;
+        for (int i = 1; i <= records; i++) {
+            final long number = buffer.getLong(i * MinWireTracer.RECORD_SIZE);
+            if (number > 0) {
+                order[count++] = (number << 24) | i; // # at most MAX_RECORDS slots
+            }
+        }
+        Arrays.sort(order, 0, count);
+
+        out.println("MIN trace "+file+", created "+Instant.ofEpochMilli(buffer.getLong(MinWireTracer.CREATED_OFFSET))
+                    +", "+count+" of "+records+" records");
+        long first_ns = 0;
+        final StringBuilder line = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            final int record = (int) (order[i] & 0xffffff) * MinWireTracer.RECORD_SIZE;
+            final long time_ns = buffer.getLong(record + MinWireTracer.TIME_OFFSET);
+            final int type = buffer.get(record + MinWireTracer.TYPE_OFFSET);
+            final boolean raw = type == MinWireTracer.RX_BYTES || type == MinWireTracer.TX_BYTES;
+            if (i == 0) {
+                first_ns = time_ns;
+            }
+            if (raw && eventsOnly) {
+                continue;
+            }
+
+            line.setLength(0);
+            line.append(String.format("%14.6f  %-10s", (time_ns - first_ns) / 1e6,
+                                      (type > 0 && type < type_names.length) ? type_names[type] : "?"+type));
+            final int id = buffer.get(record + MinWireTracer.ID_OFFSET) & 0xff;
+            final int seq = buffer.get(record + MinWireTracer.SEQ_OFFSET) & 0xff;
+            final int value = buffer.getInt(record + MinWireTracer.VALUE_OFFSET);
+            switch (type) {
+                case MinWireTracer.RX_BYTES:
+                case MinWireTracer.TX_BYTES:
+                    final int length = buffer.get(record + MinWireTracer.DATA_LENGTH_OFFSET) & 0xff;
+                    for (int j = 0; j < length; j++) {
+                        line.append(String.format(" %02x", buffer.get(record + MinWireTracer.DATA_OFFSET + j)));
+                    }
+                    break;
+                case MinWireTracer.FRAME_SENT:
+                case MinWireTracer.FRAME_RETRANSMITTED:
+                case MinWireTracer.FRAME_RECEIVED:
+                    line.append(" id ").append(id & 0x3f);
+                    if ((id & 0x80) != 0) {
+                        line.append(" seq ").append(seq);
+                    }
+                    line.append(" len ").append(value);
+                    break;
+                case MinWireTracer.ACK_SENT:
+                case MinWireTracer.ACK_RECEIVED:
+                    line.append(" rn ").append(seq);
+                    break;
+                case MinWireTracer.NACK_SENT:
+                case MinWireTracer.NACK_RECEIVED:
+                    line.append(" rn ").append(seq).append(" to ").append(value & 0xff);
+                    break;
+                case MinWireTracer.CRC_ERRORS:
+                case MinWireTracer.EOF_ERRORS:
+                    line.append(" frames ").append(value);
+                    break;
+                default:
+                    break;
+            }
+            out.println(line);
+        }
+    }
+}
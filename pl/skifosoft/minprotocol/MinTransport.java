@@ -1,76 +1,124 @@
 package pl.skifosoft.minprotocol;
 
-import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.TreeSet;
-import java.util.zip.CRC32;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Main class implementing MIN (Microcontroller Interconnect Network) protocol.
+ * <p>
+ * Concurrency model: queueFrame() may be called from any number of threads, frames are
+ * submitted through a lock-free queue. All other methods must be called from a single
+ * driver thread, which owns ARQ state (sequence numbers, transport FIFO, timers).
  */
 public class MinTransport {
 
-    private static enum State {
-        SEARCHING_FOR_SOF,
-        RECEIVING_ID_CONTROL,
-        RECEIVING_LENGTH,
-        RECEIVING_SEQ,
-        RECEIVING_PAYLOAD,
-        RECEIVING_CHECKSUM_3,
-        RECEIVING_CHECKSUM_2,
-        RECEIVING_CHECKSUM_1,
-        RECEIVING_CHECKSUM_0,
-        RECEIVING_EOF;
-    }
-
     private static final int None = -1;
-    private static final byte HEADER_BYTE = (byte) 0xaa;
-    private static final byte STUFF_BYTE = (byte) 0x55;
-
-    private static final byte EOF_BYTE = (byte) 0x55;
     private static final byte ACK = (byte) 0xff;
 
     private static final byte RESET = (byte) 0xfe;
 
-    private final int transport_fifo_size = 100;
-    private int ack_retransmit_timeout_ms = 25;
-    private final int max_window_size = 8;
-    private final int idle_timeout_ms = 30000;
-    private int frame_retransmit_timeout_ms = 50;
-    private final int rx_window_size = 16;
+    // ACK frame depends only on rn, so all 256 of them are encoded once
+    private static final byte[][] ack_frames = new byte[256][];
+
+    static {
+        final MinFrameEncoder encoder = new MinFrameEncoder();
+        for (int rn = 0; rn < 256; rn++) {
+            ack_frames[rn] = encoder.encode(ACK, rn, new byte[] { (byte) rn });
+        }
+    }
+
+    private final int transport_fifo_size;
+    private long ack_retransmit_timeout_ns;
+    private final int max_window_size;
+    private final long idle_timeout_ns;
+    private long frame_retransmit_timeout_ns;
+    private final int rx_window_size;
+
+    // # Adaptive window, frames allowed in flight and frames acknowledged since it last grew
+    private final boolean adaptive_window;
+    private int congestion_window;
+    private int acked_in_window = 0;
+
+    // # Adaptive retransmit timeout (Jacobson/Karels), smoothed RTT and its variation
+    private final boolean adaptive_retransmit_timeout;
+    private final long min_retransmit_timeout_ns;
+    private final long max_retransmit_timeout_ns;
+    private long smoothed_rtt_ns = None;
+    private long rtt_variation_ns = 0;
+    private long adaptive_retransmit_timeout_ns;
 
     // Stats about the link
-    //private final int longest_transport_fifo = 0;
-    private int dropped_frames = 0;
-    private int spurious_acks = 0;
-    //private final int mismatched_acks = 0;
-    //private final int duplicate_frames = 0;
-    //private final int retransmitted_frames = 0;
-    private int resets_received = 0;
-    private int sequence_mismatch_drops = 0;
+    private final MinLinkMetrics metrics;
+    private MinWireTracer tracer = null; // # null if disabled
 
     // State of transport FIFO
-    ArrayList<MinFrame> transport_fifo = new ArrayList<MinFrame>();
-    private long last_sent_ack_time_ms = None;
-    private long last_received_anything_ms = None;
-    private long last_received_frame_ms = None;
-    private long last_sent_frame_ms = None;
+    // # Times are clock.nanoTime() based, now_ns is read once per poll, trace records read the clock when written
+    private final MinClock clock;
+    // # Ring of frames in send window, in sequence order
+    private final MinFrame[] transport_fifo;
+    private int transport_fifo_head = 0;
+    private int transport_fifo_count = 0;
+    // # Rings of frames waiting to be sent, one per priority level, sequence number is assigned when sent
+    private final MinFrame[][] waiting_frames;
+    private final int[] waiting_head;
+    private final int[] waiting_count;
+    private int waiting_total = 0;
+    // # Frames of each priority level from queueFrame() until ACK or reset, limited by priority_fifo_sizes
+    private final int[] priority_fifo_sizes;
+    private final AtomicIntegerArray priority_fifo_counts;
+    private final int[] priorities; // # default priority of each minId
+    // # Frames submitted by producers, not yet moved to transport FIFO by the driver
+    private final MinBoundedQueue<MinFrame> submitted_frames;
+    // # Recycled outbound frames, at most transport_fifo_size are ever allocated
+    private final MinBoundedQueue<MinFrame> free_frames;
+    private final AtomicInteger allocated_frames = new AtomicInteger(0);
+    // # Producers waiting in sendAsync() for a free frame
+    private final Object capacity_lock = new Object();
+    private volatile int capacity_waiters = 0;
+    private final long ack_timeout_ns; // # 0 if disabled
+    private long ack_wait_since_ns; // # first send into empty window or last ACK moving sn_min
+    private final MinTimerWheel retransmit_timers;
+    private long now_ns;
+    private long last_sent_ack_time_ns;
+    private long last_received_anything_ns;
+    private long last_received_frame_ns;
+    private long last_sent_frame_ns;
 
     // # State for receiving a MIN frame
-    private ByteArrayOutputStream rx_frame_buf;
-    private int rx_header_bytes_seen = 0;
-    private State rx_frame_state = State.SEARCHING_FOR_SOF;
-    private int rx_frame_checksum = 0;
-    private byte rx_frame_id_control = 0;
-    private byte rx_frame_seq = 0;
-    private byte rx_frame_length = 0;
-    private byte rx_control = 0;
+    private final MinFrameDecoder decoder = new MinFrameDecoder(new MinFrameDecoder.Listener() {
+        @Override
+        public void frameDecoded(byte idControl, int seq, byte[] payload, int length) {
+            min_frame_received(idControl, payload, length, seq);
+        }
+    });
 
     ArrayList<MinFrame> rx_list = new ArrayList<MinFrame>();
-    HashMap<Integer, MinFrame> stashed_rx_dict = new HashMap<Integer, MinFrame>();
+    private final MinBoundedQueue<MinFrame> rx_frame_pool; // # null if disabled
+    private final MinReorderBuffer stashed_rx_frames = new MinReorderBuffer();
+    private final MinReceivePublisher receive_publisher;
+    private final MinPayloadCodec payload_codec; // # null if compression is not used
+
+    // # Handlers by minId, set by any thread, taken over by the driver at the start of poll()
+    private final AtomicReferenceArray<MinHandlerQueue> pending_handlers = new AtomicReferenceArray<MinHandlerQueue>(64);
+    private volatile boolean handlers_changed = false;
+    private final MinHandlerQueue[] handlers = new MinHandlerQueue[64];
+    private boolean inline_handlers = false;
+    // # replaced handlers still holding frames, oldest of a minId first, and their number per minId
+    private final ArrayList<MinHandlerQueue> retired_handlers = new ArrayList<MinHandlerQueue>();
+    private final int[] retired_counts = new int[64];
+    // # executor of a handler rejected its drain task, retried by poll()
+    private volatile boolean handlers_rejected = false;
+    private static final long handler_retry_ns = TimeUnit.MILLISECONDS.toNanos(10);
 
     // # Sequence numbers
     private int rn = 0; // # Sequence number expected to be received next
@@ -80,16 +128,93 @@ public class MinTransport {
     // # NACK status
     private int nack_outstanding = None;
 
+    // # Delayed ACK, time when first frame not acknowledged yet was received
+    private final boolean delayed_ack;
+    private final long ack_delay_ns;
+    private boolean ack_pending = false;
+    private long ack_pending_since_ns;
+
     private final MinSerialInterface serialInterface;
 
+    // # State for waiting on incoming data
+    private static final long no_listener_wait_ns = TimeUnit.MILLISECONDS.toNanos(10);
+    private final boolean data_listener_supported;
+    private volatile boolean wakeup_pending = false;
+    private volatile Thread waiting_thread = null;
+    private volatile Runnable wakeup_listener = null; // # set when driven by MinTransportGroup
+
+    // # State for sending a MIN frame
+    private final MinFrameEncoder encoder = new MinFrameEncoder();
+    // # Everything sent during poll is staged here and written at once, allocated on first send
+    private static final int tx_buf_size = 4096;
+    private ByteBuffer tx_buf = null;
+    private final byte[] nack_payload = new byte[1];
+    private static final byte[] empty_payload = new byte[0];
+
     /**
-     * Entry point constructor
+     * Entry point constructor, default configuration.
      *
      * @param serialInterface
      */
     public MinTransport(final MinSerialInterface serialInterface) {
+        this(serialInterface, MinTransportConfig.defaults());
+    }
+
+    /**
+     * @param serialInterface
+     * @param config limits and timeouts, see MinTransportConfig.builder()
+     */
+    public MinTransport(final MinSerialInterface serialInterface, final MinTransportConfig config) {
+        this.transport_fifo_size = config.transport_fifo_size;
+        this.max_window_size = config.max_window_size;
+        this.rx_window_size = config.rx_window_size;
+        this.idle_timeout_ns = TimeUnit.MILLISECONDS.toNanos(config.idle_timeout_ms);
+        this.frame_retransmit_timeout_ns = TimeUnit.MILLISECONDS.toNanos(config.retransmit_timeout_ms);
+        this.ack_retransmit_timeout_ns = TimeUnit.MILLISECONDS.toNanos(config.keep_alive_timeout_ms);
+        this.adaptive_window = config.adaptive_window;
+        this.delayed_ack = config.delayed_ack;
+        this.ack_delay_ns = TimeUnit.MILLISECONDS.toNanos(config.ack_delay_ms);
+        this.ack_timeout_ns = TimeUnit.MILLISECONDS.toNanos(config.ack_timeout_ms);
+        this.adaptive_retransmit_timeout = config.adaptive_retransmit_timeout;
+        this.min_retransmit_timeout_ns = TimeUnit.MILLISECONDS.toNanos(config.min_retransmit_timeout_ms);
+        this.max_retransmit_timeout_ns = TimeUnit.MILLISECONDS.toNanos(config.max_retransmit_timeout_ms);
+        this.adaptive_retransmit_timeout_ns = clamp_retransmit_timeout(frame_retransmit_timeout_ns);
+        this.transport_fifo = new MinFrame[transport_fifo_size];
+        this.priority_fifo_sizes = config.priority_fifo_sizes;
+        this.priority_fifo_counts = new AtomicIntegerArray(priority_fifo_sizes.length);
+        this.priorities = config.priorities;
+        this.waiting_frames = new MinFrame[priority_fifo_sizes.length][];
+        for (int priority = 0; priority < priority_fifo_sizes.length; priority++) {
+            waiting_frames[priority] = new MinFrame[priority_fifo_sizes[priority]];
+        }
+        this.waiting_head = new int[priority_fifo_sizes.length];
+        this.waiting_count = new int[priority_fifo_sizes.length];
+        this.metrics = new MinLinkMetrics(config.latency_histograms, priority_fifo_sizes.length);
+        this.receive_publisher = new MinReceivePublisher(this, rx_window_size);
+        this.payload_codec = (config.compression_dictionaries != null)
+            ? new MinPayloadCodec(config.compression_dictionaries) : null;
+        this.submitted_frames = new MinBoundedQueue<MinFrame>(transport_fifo_size);
+        this.free_frames = new MinBoundedQueue<MinFrame>(transport_fifo_size);
+        if (config.rx_frame_pool_size > 0) {
+            this.rx_frame_pool = new MinBoundedQueue<MinFrame>(config.rx_frame_pool_size);
+            for (int i = 0; i < config.rx_frame_pool_size; i++) {
+                rx_frame_pool.offer(new MinFrame(MinFrameDecoder.MAX_PAYLOAD, rx_frame_pool));
+            }
+        } else {
+            this.rx_frame_pool = null;
+        }
+
         this.serialInterface = serialInterface;
-        transport_fifo_reset();
+        this.clock = config.clock;
+        this.now_ns = clock.nanoTime();
+        this.retransmit_timers = new MinTimerWheel(now_ns);
+        this.data_listener_supported = serialInterface.setDataListener(new Runnable() {
+            @Override
+            public void run() {
+                wakeup();
+            }
+        });
+        transport_fifo_reset(null);
     }
 
     /**
@@ -98,11 +223,15 @@ public class MinTransport {
      * otherwise received ACK would be probably to late and frame would be
      * retransmitted for no reason.
      * Default is 50 ms.
+     * With adaptive retransmit timeout enabled it's used only until the first RTT measurement.
      *
      * @param retransmitTimeoutMs retransmit timeout in milliseconds
      */
     public void setRetransmitTimeout(int retransmitTimeoutMs) {
-        frame_retransmit_timeout_ms = (retransmitTimeoutMs >= 0) ? retransmitTimeoutMs : 0;
+        frame_retransmit_timeout_ns = TimeUnit.MILLISECONDS.toNanos((retransmitTimeoutMs >= 0) ? retransmitTimeoutMs : 0);
+        if (smoothed_rtt_ns == None) {
+            adaptive_retransmit_timeout_ns = clamp_retransmit_timeout(frame_retransmit_timeout_ns);
+        }
     }
 
 
@@ -115,7 +244,7 @@ public class MinTransport {
      * @param keepAliveTimeout timeout in milliseconds
      */
     public void setKeepAliveTimeout(int keepAliveTimeoutMs) {
-        ack_retransmit_timeout_ms = (keepAliveTimeoutMs > 25) ? keepAliveTimeoutMs : 25;
+        ack_retransmit_timeout_ns = TimeUnit.MILLISECONDS.toNanos((keepAliveTimeoutMs > 25) ? keepAliveTimeoutMs : 25);
     }
 
     /**
@@ -124,10 +253,11 @@ public class MinTransport {
      */
     public void transportReset() {
         send_reset();
+        tx_flush();
 
         serialInterface.serialReadAll(); // flush stale input
 
-        transport_fifo_reset();
+        transport_fifo_reset(new TransportResetException("transport reset"));
         rx_reset();
     }
 
@@ -145,15 +275,16 @@ public class MinTransport {
         if (minId < 0 || minId >= 64)
             throw new MinIdException("minId out of range: "+minId);
 
-        final MinFrame frame = new MinFrame((byte) (minId & 0xff), payload, 0, false, false);
-
-        final byte[] owb = on_wire_bytes(frame);
-        serialInterface.serialWrite(owb);
+        frame_send((byte) (minId & 0x3f), 0, payload, payload.length);
+        trace(MinWireTracer.FRAME_SENT, minId & 0x3f, 0, payload.length);
+        tx_flush();
     }
 
     /**
      * Queue transport frame. Such frames can be automatically retransmitted in case of error.
      * This is normal way of sending frames.
+     * Payload is copied into recycled frame, so caller may reuse the array.
+     * Thread safe and lock-free, wakes up driver thread waiting in poll(long).
      *
      * @param minId user defined id of the frame (must be 0 - 63 range)
      * @param payload data to send
@@ -163,73 +294,364 @@ public class MinTransport {
      */
     public void queueFrame(final int minId, final byte[] payload) throws FifoFullException, MinIdException, PayloadTooLongException {
 
-        if (payload.length > 256)
-            throw new PayloadTooLongException("length = "+payload.length+", max 256.");
-        if (minId < 0 || minId > 64)
+        check_frame(minId, payload);
+        queue_frame(minId, payload, priorities[minId]);
+    }
+
+    /**
+     * Queue transport frame as queueFrame(int, byte[]) does, with priority given by the call
+     * instead of the one configured for minId, see MinTransportConfig.Builder.priorityLevels().
+     *
+     * @param minId user defined id of the frame (must be 0 - 63 range)
+     * @param payload data to send
+     * @param priority priority level, 0 is the most urgent
+     * @throws FifoFullException if FIFO of the priority level is full
+     * @throws MinIdException
+     * @throws PayloadTooLongException
+     */
+    public void queueFrame(final int minId, final byte[] payload, final int priority) throws FifoFullException,
+                                                                                            MinIdException,
+                                                                                            PayloadTooLongException {
+        check_frame(minId, payload);
+        check_priority(priority);
+        queue_frame(minId, payload, priority);
+    }
+
+    private void queue_frame(final int minId, final byte[] payload, final int priority) throws FifoFullException {
+        final MinFrame frame = take_free_frame(priority);
+        if (frame == null) {
+            metrics.frame_dropped(priority);
+            throw new FifoFullException(priority);
+        }
+        submit_frame(frame, minId, payload, payload.length, priority, null);
+    }
+
+    /**
+     * Queue transport frame as queueFrame() does, returning a future completed when
+     * the frame is acknowledged by the other end. Future fails with TransportResetException
+     * when the frame is dropped by transport reset, AckTimeoutException if ACK timeout is set
+     * and exceeded (see MinTransportConfig.Builder.ackTimeout()).
+     * <p>
+     * Future is completed by the driver thread during poll(), so are dependent actions
+     * unless added with async methods. Dependent actions must be short and may call only
+     * thread safe methods of this transport (queueFrame(), sendAsync()).
+     *
+     * @param minId user defined id of the frame (must be 0 - 63 range)
+     * @param payload data to send
+     * @return future completed on ACK
+     * @throws FifoFullException
+     * @throws MinIdException
+     * @throws PayloadTooLongException
+     */
+    public CompletableFuture<Void> sendAsync(final int minId, final byte[] payload) throws FifoFullException,
+                                                                                          MinIdException,
+                                                                                          PayloadTooLongException {
+        check_frame(minId, payload);
+        final int priority = priorities[minId];
+        final MinFrame frame = take_free_frame(priority);
+        if (frame == null) {
+            metrics.frame_dropped(priority);
+            throw new FifoFullException(priority);
+        }
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        submit_frame(frame, minId, payload, payload.length, priority, future);
+        return future;
+    }
+
+    /**
+     * As sendAsync(int, byte[]), but when transport FIFO is full waits until acknowledged
+     * frames make room for this one, so producers may keep the FIFO full without handling
+     * FifoFullException.
+     *
+     * @param minId user defined id of the frame (must be 0 - 63 range)
+     * @param payload data to send
+     * @param awaitCapacityMs longest time to wait for room in transport FIFO
+     * @return future completed on ACK
+     * @throws FifoFullException if FIFO is still full after awaitCapacityMs
+     * @throws MinIdException
+     * @throws PayloadTooLongException
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public CompletableFuture<Void> sendAsync(final int minId, final byte[] payload, final long awaitCapacityMs)
+        throws FifoFullException, MinIdException, PayloadTooLongException, InterruptedException {
+
+        check_frame(minId, payload.length);
+        return send_async(minId, payload, payload.length, priorities[minId], awaitCapacityMs);
+    }
+
+    /**
+     * As sendAsync(int, byte[], long), with priority given by the call instead of the one
+     * configured for minId, see MinTransportConfig.Builder.priorityLevels().
+     *
+     * @param minId user defined id of the frame (must be 0 - 63 range)
+     * @param payload data to send
+     * @param priority priority level, 0 is the most urgent
+     * @param awaitCapacityMs longest time to wait for room in FIFO of the priority level
+     * @return future completed on ACK
+     * @throws FifoFullException if FIFO of the priority level is still full after awaitCapacityMs
+     * @throws MinIdException
+     * @throws PayloadTooLongException
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public CompletableFuture<Void> sendAsync(final int minId, final byte[] payload, final int priority,
+                                             final long awaitCapacityMs)
+        throws FifoFullException, MinIdException, PayloadTooLongException, InterruptedException {
+
+        check_frame(minId, payload.length);
+        check_priority(priority);
+        return send_async(minId, payload, payload.length, priority, awaitCapacityMs);
+    }
+
+    // # first length bytes of payload as sendAsync(int, byte[], long), see MinMessageSender
+    CompletableFuture<Void> send_async(final int minId, final byte[] payload, final int length,
+                                       final long awaitCapacityMs)
+        throws FifoFullException, MinIdException, PayloadTooLongException, InterruptedException {
+
+        check_frame(minId, length);
+        return send_async(minId, payload, length, priorities[minId], awaitCapacityMs);
+    }
+
+    private CompletableFuture<Void> send_async(final int minId, final byte[] payload, final int length,
+                                               final int priority, final long awaitCapacityMs)
+        throws FifoFullException, InterruptedException {
+
+        MinFrame frame = take_free_frame(priority);
+        if (frame == null) {
+            frame = await_free_frame(priority, TimeUnit.MILLISECONDS.toNanos(awaitCapacityMs));
+            if (frame == null) {
+                metrics.frame_dropped(priority);
+                throw new FifoFullException(priority);
+            }
+        }
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        submit_frame(frame, minId, payload, length, priority, future);
+        return future;
+    }
+
+    private void check_frame(final int minId, final byte[] payload) throws MinIdException,
+                                                                           PayloadTooLongException {
+        check_frame(minId, payload.length);
+    }
+
+    private void check_frame(final int minId, final int length) throws MinIdException, PayloadTooLongException {
+        if (length >= 256)
+            throw new PayloadTooLongException("payload length: "+length+", max 255.");
+        if (minId < 0 || minId >= 64)
             throw new MinIdException("minId out of range: "+minId);
+        if (payload_codec != null && payload_codec.enabled(minId) && length > MinPayloadCodec.MAX_PAYLOAD)
+            throw new PayloadTooLongException("payload length: "+length+", max "+MinPayloadCodec.MAX_PAYLOAD
+                                              +" for compressed minId "+minId+".");
+    }
 
-        if (transport_fifo.size() < transport_fifo_size) {
-            final MinFrame frame = new MinFrame((byte) (minId & 0xff), payload, sn_max, true, false);
-            //System.out.println("queuing: "+frame);
-            transport_fifo.add(frame);
-        } else {
-            dropped_frames++;
-            throw new FifoFullException();
+    private void check_priority(final int priority) {
+        if (priority < 0 || priority >= priority_fifo_sizes.length)
+            throw new IllegalArgumentException("priority: "+priority+", must be 0 - "+(priority_fifo_sizes.length - 1));
+    }
+
+    // # longest payload accepted for minId, see MinTransportConfig.Builder.compression()
+    int max_payload(final int minId) {
+        return (payload_codec != null && minId >= 0 && minId < 64 && payload_codec.enabled(minId))
+            ? MinPayloadCodec.MAX_PAYLOAD : MinFrameDecoder.MAX_PAYLOAD;
+    }
+
+    // # frame counted against FIFO limit of its priority, null if the limit is reached
+    private MinFrame take_free_frame(final int priority) {
+        int count;
+        do {
+            count = priority_fifo_counts.get(priority);
+            if (count >= priority_fifo_sizes[priority]) {
+                return null;
+            }
+        } while (!priority_fifo_counts.compareAndSet(priority, count, count + 1));
+
+        // # all limits add up to the number of frames, frame is returned before its count drops
+        MinFrame frame = free_frames.poll();
+        if (frame == null) {
+            frame = allocate_frame();
+        }
+        if (frame == null) {
+            throw new AssertionError();
+        }
+        return frame;
+    }
+
+    // # driver thread, frame no longer counted against FIFO limit of its priority
+    private void recycle_frame(final MinFrame frame) {
+        free_frames.offer(frame);
+        priority_fifo_counts.decrementAndGet(frame.priority);
+    }
+
+    private MinFrame await_free_frame(final int priority, final long timeout_ns) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeout_ns;
+        synchronized (capacity_lock) {
+            // # counted before checking free frames, see capacity_freed()
+            capacity_waiters++;
+            try {
+                for (;;) {
+                    final MinFrame frame = take_free_frame(priority);
+                    if (frame != null) {
+                        return frame;
+                    }
+                    final long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        return null;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(capacity_lock, left);
+                }
+            } finally {
+                capacity_waiters--;
+            }
+        }
+    }
+
+    private void submit_frame(final MinFrame frame, final int minId, final byte[] payload, final int length,
+                              final int priority, final CompletableFuture<Void> future) {
+        // # sequence number is assigned by the driver when frame is sent
+        frame.set((byte) minId, payload, length, 0, true);
+        frame.priority = priority;
+        frame.queued_time = clock.nanoTime();
+        frame.future = future;
+        if (!submitted_frames.offer(frame)) {
+            throw new AssertionError(); // # capacity reserved above
+        }
+        wakeup();
+    }
+
+    // # driver thread, after frames were recycled
+    private void capacity_freed() {
+        // # free frame published before waiters are read, waiter counts itself before looking for one
+        VarHandle.fullFence();
+        if (capacity_waiters > 0) {
+            synchronized (capacity_lock) {
+                capacity_lock.notifyAll();
+            }
         }
     }
 
     /**
      * Drives the engine.
      * Sends queued frames, receive incoming traffic, retransmits, sends ACK, does stuff.
+     * Everything sent during single poll is written to serial interface at once.
      * Must be invoked periodically.
      *
      * @return list of received frames
      */
     public ArrayList<MinFrame> poll() {
 
-        long currentTimeMillis = System.currentTimeMillis();
+        now_ns = clock.nanoTime();
+
+        final boolean remote_connected = (now_ns - last_received_anything_ns) < idle_timeout_ns;
+        final boolean remote_active = (now_ns - last_received_frame_ns) < idle_timeout_ns;
 
-        final boolean remote_connected = (currentTimeMillis - last_received_anything_ms) < idle_timeout_ms;
-        final boolean remote_active = (currentTimeMillis - last_received_frame_ms) < idle_timeout_ms;
+        take_submitted_frames();
+
+        if (handlers_changed) {
+            take_handlers();
+        }
+        if (handlers_rejected) {
+            retry_handlers();
+        }
+
+        // # Frames in flight and no ACK moved the window for too long, give up the link
+        if (ack_timeout_ns > 0 && transport_fifo_count > 0 && now_ns - ack_wait_since_ns >= ack_timeout_ns) {
+            send_reset();
+            transport_fifo_reset(new AckTimeoutException("no ACK within "
+                                                         +TimeUnit.NANOSECONDS.toMillis(ack_timeout_ns)+" ms"));
+            rx_reset();
+        }
 
         rx_list.clear();
+
+        // # frames held back while subscriber or handler had no room
+        if (stashed_deliverable() && deliver_stashed()) {
+            ack_frame_received();
+        }
+
         final byte[] data = serialInterface.serialReadAll();
         if (data.length > 0) {
-            rx_bytes(data);
+            final long crc_errors = decoder.getCrcErrors();
+            final long eof_errors = decoder.getMissingEofErrors();
+            if (tracer != null) {
+                tracer.bytes(MinWireTracer.RX_BYTES, clock.nanoTime(), data, 0, data.length);
+            }
+            decoder.decode(data);
+            metrics.bytes_received(data.length);
+            metrics.decoder_errors(decoder.getCrcErrors(), decoder.getMissingEofErrors());
+            if (decoder.getCrcErrors() != crc_errors) {
+                trace(MinWireTracer.CRC_ERRORS, 0, 0, (int) (decoder.getCrcErrors() - crc_errors));
+            }
+            if (decoder.getMissingEofErrors() != eof_errors) {
+                trace(MinWireTracer.EOF_ERRORS, 0, 0, (int) (decoder.getMissingEofErrors() - eof_errors));
+            }
         }
 
-        currentTimeMillis = System.currentTimeMillis();
-        final int window_size = (sn_max - sn_min) & 0xff;
-        if ((window_size < max_window_size) && transport_fifo.size() > window_size) {
-            // # Frames still to send
-            final MinFrame frame = transport_fifo_get(window_size);
+        // # Frames still to send, as many as window allows, most urgent first
+        int window_size = (sn_max - sn_min) & 0xff;
+        while ((window_size < send_window_size()) && waiting_total > 0) {
+            final MinFrame frame = take_waiting_frame();
             frame.seq = (byte) (sn_max & 0xff);
+            // # compressed in sequence order, the order in which the other end decompresses them
+            if (payload_codec != null && payload_codec.enabled(frame.getId())) {
+                final int length = frame.length;
+                payload_codec.compress(frame);
+                metrics.frame_compressed(length, frame.length);
+            }
+            if (transport_fifo_count == 0) {
+                ack_wait_since_ns = now_ns;
+            }
+            transport_fifo[(transport_fifo_head + transport_fifo_count) % transport_fifo.length] = frame;
+            transport_fifo_count++;
 
-            last_sent_frame_ms = currentTimeMillis;
-            frame.last_sent_time = currentTimeMillis;
-
+            last_sent_frame_ns = now_ns;
             transport_fifo_send(frame);
             sn_max = (sn_max + 1) & 0xff;
-        } else {
-            // # Maybe retransmits
-            if ((window_size > 0) && remote_connected) {
-                final MinFrame oldest_frame = find_oldest_frame();
-                long delta = currentTimeMillis - oldest_frame.last_sent_time;
-                if (delta > frame_retransmit_timeout_ms) {
-                    //System.out.println("retransmit: "+oldest_frame);
-                    transport_fifo_send(oldest_frame);
-                }
+            window_size++;
+        }
+
+        // # Retransmit all frames which are due, postpone them while remote is not connected
+        MinFrame expired = retransmit_timers.expire(now_ns);
+        if (expired != null && remote_connected) {
+            shrink_window();
+            back_off_retransmit_timeout();
+        }
+        while (expired != null) {
+            final MinFrame next = expired.timer_next;
+            expired.timer_next = null;
+            if (remote_connected) {
+                transport_fifo_send(expired);
+            } else {
+                retransmit_timers.schedule(expired, now_ns + retransmit_timeout_ns());
             }
+            expired = next;
+        }
+
+        // # Delayed cumulative ACK
+        if (ack_pending && (now_ns - ack_pending_since_ns >= ack_delay_ns)) {
+            send_ack();
         }
 
         // # Periodically transmit ACK
-        if (currentTimeMillis - last_sent_ack_time_ms > ack_retransmit_timeout_ms) {
-            //System.out.println("send ack delta: "+(currentTimeMillis - last_sent_ack_time_ms)+", rn: "+rn+", r-active: "+remote_active);
+        if (now_ns - last_sent_ack_time_ns >= ack_retransmit_timeout_ns) {
             if (remote_active) {
                 send_ack();
             }
         }
 
+        // # One write for ACKs, NACKs, new frames and retransmits produced during this poll
+        tx_flush();
+
+        final int passed_on = retired_handlers.isEmpty() ? 0 : pass_on_retired();
+        metrics.frames_received(rx_list.size() - passed_on);
+        metrics.transport_fifo_depth(transport_fifo_count + waiting_total);
+
+        // # protocol work is done, frames may be handled now
+        if (inline_handlers) {
+            dispatch_inline();
+        }
+
+        // # with subscriber frames go to receive publisher, returned list is empty
+        receive_publisher.publish(rx_list);
+
         if (((sn_max - sn_max) & 0xff) > window_size) {
             throw new AssertionError();
         }
@@ -237,50 +659,410 @@ public class MinTransport {
         return rx_list;
     }
 
-    private void transport_fifo_reset() {
+    /**
+     * Event driven variant of poll().
+     * Sleeps until incoming bytes are signalled by the serial interface, next retransmit or keep-alive
+     * is due, or timeout elapses, whichever comes first, then drives the engine as poll() does.
+     * Without data listener support in the serial interface sleeps at most 10 ms at once.
+     *
+     * @param timeoutMs maximal time to wait in milliseconds, 0 does not wait at all
+     * @return list of received frames
+     */
+    public ArrayList<MinFrame> poll(final long timeoutMs) {
+
+        await_data(Math.min(TimeUnit.MILLISECONDS.toNanos(timeoutMs), next_poll_wait_ns()));
+
+        return poll();
+    }
+
+    // # time after which poll() has something to do, unless woken up earlier
+    long next_poll_wait_ns() {
+        final long wait_ns = next_deadline_ns();
+        return data_listener_supported ? wait_ns : Math.min(wait_ns, no_listener_wait_ns);
+    }
+
+    /**
+     * Counters and latency histograms of this link, may be read from any thread.
+     * Call getMetrics().register(name) to publish them as JMX MBean.
+     *
+     * @return metrics of this link
+     */
+    public MinLinkMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Record raw bytes and protocol events of this link, see MinWireTracer.
+     * Must be called from the driver thread.
+     *
+     * @param tracer tracer used by this transport only, null to stop tracing
+     */
+    public void setWireTracer(final MinWireTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Received frames as a Flow publisher, alternative to the list returned by poll().
+     * <p>
+     * While subscribed, poll() returns empty list and delivers frames to the subscriber instead,
+     * on the driver thread. Frames not requested yet are buffered, up to rxWindowSize frames.
+     * When the buffer is full the transport neither accepts nor acknowledges further frames,
+     * the other end retransmits them until subscriber requests more, so a fast device can't
+     * overwhelm a slow consumer. Non-transport frames arriving then are dropped.
+     * One subscriber at a time, other ones get IllegalStateException.
+     * Subscriber must release frames leased from receive frame pool, as usual.
+     *
+     * @return publisher of received frames
+     */
+    public Flow.Publisher<MinFrame> receivePublisher() {
+        return receive_publisher;
+    }
+
+    /**
+     * Subscriber sending payloads it receives as transport frames with the given minId.
+     * It requests maxInFlight payloads from upstream and another one whenever a frame is
+     * acknowledged, so upstream produces only as fast as the link delivers, without blocking.
+     * If a frame is dropped by transport reset, or a payload can't be queued (too long, or FIFO
+     * filled by other producers), subscription is cancelled. Watch the end of the stream,
+     * successful or not, through MinSendSubscriber.getCompletion().
+     *
+     * @param minId user defined id of the frames (must be 0 - 63 range)
+     * @param maxInFlight frames queued but not acknowledged yet, keep it within transport FIFO size
+     * @return new subscriber
+     * @throws MinIdException
+     */
+    public MinSendSubscriber sendSubscriber(final int minId, final int maxInFlight) throws MinIdException {
+        if (minId < 0 || minId >= 64)
+            throw new MinIdException("minId out of range: "+minId);
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("max in flight: "+maxInFlight);
+        return new MinSendSubscriber(this, minId, maxInFlight);
+    }
+
+    /**
+     * Handle frames with minId by handler called on the driver thread at the end of poll(),
+     * after protocol work is done. Such frames are neither returned by poll() nor published.
+     * Handler must return quickly and must not call poll(), a slow one delays ACKs and retransmits
+     * of the whole link, give it an executor instead.
+     * May be called from any thread, takes effect at the next poll.
+     *
+     * @param minId user defined id of the frames (must be 0 - 63 range)
+     * @param handler handler of the frames, null to return them by poll() again
+     * @throws MinIdException
+     */
+    public void setFrameHandler(final int minId, final MinFrameHandler handler) throws MinIdException {
+        set_handler(minId, (handler != null) ? new MinHandlerQueue(this, minId, handler, null, 0) : null);
+    }
+
+    /**
+     * Handle frames with minId by handler running on executor, e.g. a dedicated thread
+     * (Executors.newSingleThreadExecutor()) or a virtual thread per task executor.
+     * Driver only hands frames off through a bounded lock-free queue, handler is still called
+     * for one frame at a time, in order of arrival, whatever executor is used.
+     * When the queue is full the transport neither accepts nor acknowledges further frames,
+     * as with receivePublisher(), the other end retransmits them until handler catches up.
+     * Non-transport frames arriving then are dropped.
+     * May be called from any thread, takes effect at the next poll. Frames handed off when
+     * the executor rejects the task stay queued, poll() keeps scheduling it again while the handler
+     * is set. When it is replaced, a running task still gives queued frames to the replaced handler,
+     * frames left then go to the new handler of minId, or are returned by poll() if there is none,
+     * before any later frame of minId.
+     *
+     * @param minId user defined id of the frames (must be 0 - 63 range)
+     * @param handler handler of the frames
+     * @param executor executor running the handler
+     * @param queueSize frames handed off but not handled yet, rounded up to power of 2
+     * @throws MinIdException
+     */
+    public void setFrameHandler(final int minId, final MinFrameHandler handler, final Executor executor,
+                                final int queueSize) throws MinIdException {
+        if (handler == null || executor == null)
+            throw new IllegalArgumentException("handler and executor must not be null");
+        if (queueSize < 1)
+            throw new IllegalArgumentException("handler queue size: "+queueSize);
+        set_handler(minId, new MinHandlerQueue(this, minId, handler, executor, queueSize));
+    }
+
+    private void set_handler(final int minId, final MinHandlerQueue handler) throws MinIdException {
+        if (minId < 0 || minId >= 64)
+            throw new MinIdException("minId out of range: "+minId);
+        pending_handlers.set(minId, handler);
+        handlers_changed = true;
+        wakeup();
+    }
+
+    void set_wakeup_listener(final Runnable listener) {
+        wakeup_listener = listener;
+    }
+
+    // # time left until next frame send, retransmit or keep-alive
+    private long next_deadline_ns() {
+
+        final long currentTimeNs = clock.nanoTime();
+        final int window_size = (sn_max - sn_min) & 0xff;
+
+        if ((window_size < send_window_size())
+            && (waiting_total > 0 || !submitted_frames.isEmpty())) {
+            return 0; // # Frames still to send
+        }
+        if (receive_publisher.has_work() || stashed_deliverable()) {
+            return 0; // # Frames to deliver
+        }
+
+        long wait_ns = Long.MAX_VALUE;
+        if ((currentTimeNs - last_received_anything_ns) < idle_timeout_ns) {
+            final long deadline_ns = retransmit_timers.next_deadline_ns();
+            if (deadline_ns != Long.MAX_VALUE) {
+                wait_ns = deadline_ns - currentTimeNs;
+            }
+        }
+        if ((currentTimeNs - last_received_frame_ns) < idle_timeout_ns) {
+            wait_ns = Math.min(wait_ns, last_sent_ack_time_ns + ack_retransmit_timeout_ns - currentTimeNs);
+        }
+        if (ack_pending) {
+            wait_ns = Math.min(wait_ns, ack_pending_since_ns + ack_delay_ns - currentTimeNs);
+        }
+        if (ack_timeout_ns > 0 && transport_fifo_count > 0) {
+            wait_ns = Math.min(wait_ns, ack_wait_since_ns + ack_timeout_ns - currentTimeNs);
+        }
+        if (handlers_rejected) {
+            wait_ns = Math.min(wait_ns, handler_retry_ns);
+        }
+        return Math.max(0, wait_ns);
+    }
+
+    private void await_data(final long wait_ns) {
+
+        if (wait_ns <= 0) {
+            return;
+        }
+        final Thread current = Thread.currentThread();
+        final long deadline = System.nanoTime() + wait_ns;
+
+        waiting_thread = current;
+        while (!wakeup_pending && !current.isInterrupted()) {
+            final long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                break;
+            }
+            LockSupport.parkNanos(this, left);
+        }
+        waiting_thread = null;
+        // # cleared before reading, bytes or frames arriving later would signal again
+        wakeup_pending = false;
+    }
+
+    void wakeup() {
+        wakeup_pending = true;
+        final Thread waiting = waiting_thread;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+        final Runnable listener = wakeup_listener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private int send_window_size() {
+        return adaptive_window ? congestion_window : max_window_size;
+    }
+
+    // # additive increase, one frame per window of acknowledged frames
+    private void grow_window(final int number_acked) {
+        if (!adaptive_window) {
+            return;
+        }
+        acked_in_window += number_acked;
+        if (acked_in_window >= congestion_window) {
+            acked_in_window = 0;
+            if (congestion_window < max_window_size) {
+                congestion_window++;
+            }
+        }
+    }
+
+    // # multiplicative decrease on loss
+    private void shrink_window() {
+        if (!adaptive_window) {
+            return;
+        }
+        acked_in_window = 0;
+        congestion_window = Math.max(1, congestion_window / 2);
+    }
+
+    private long retransmit_timeout_ns() {
+        return adaptive_retransmit_timeout ? adaptive_retransmit_timeout_ns : frame_retransmit_timeout_ns;
+    }
+
+    private long clamp_retransmit_timeout(final long timeout_ns) {
+        return Math.max(min_retransmit_timeout_ns, Math.min(max_retransmit_timeout_ns, timeout_ns));
+    }
+
+    private void rtt_measured(final long rtt_ns) {
+        metrics.rtt_measured(rtt_ns);
+        if (smoothed_rtt_ns == None) {
+            smoothed_rtt_ns = rtt_ns;
+            rtt_variation_ns = rtt_ns / 2;
+        } else {
+            rtt_variation_ns = (3 * rtt_variation_ns + Math.abs(smoothed_rtt_ns - rtt_ns)) / 4;
+            smoothed_rtt_ns = (7 * smoothed_rtt_ns + rtt_ns) / 8;
+        }
+        // # also drops any backoff
+        adaptive_retransmit_timeout_ns = clamp_retransmit_timeout(
+            smoothed_rtt_ns + Math.max(TimeUnit.MILLISECONDS.toNanos(1), 4 * rtt_variation_ns));
+    }
+
+    private void back_off_retransmit_timeout() {
+        adaptive_retransmit_timeout_ns = clamp_retransmit_timeout(2 * adaptive_retransmit_timeout_ns);
+    }
 
-        transport_fifo.clear();
-        final long currentMs = System.currentTimeMillis();
-        last_received_anything_ms = currentMs;
-        last_sent_ack_time_ms = currentMs;
-        last_sent_frame_ms = 0l;
-        last_received_frame_ms = 0l;
+    private MinFrame allocate_frame() {
+        int allocated;
+        do {
+            allocated = allocated_frames.get();
+            if (allocated >= transport_fifo_size) {
+                return null;
+            }
+        } while (!allocated_frames.compareAndSet(allocated, allocated + 1));
+        return new MinFrame(MinFrameDecoder.MAX_PAYLOAD, null);
+    }
+
+    private void take_submitted_frames() {
+        MinFrame frame;
+        while ((frame = submitted_frames.poll()) != null) {
+            final int priority = frame.priority;
+            final MinFrame[] waiting = waiting_frames[priority];
+            waiting[(waiting_head[priority] + waiting_count[priority]) % waiting.length] = frame;
+            waiting_count[priority]++;
+            waiting_total++;
+        }
+    }
+
+    // # first frame of the most urgent level, null if nothing waits
+    private MinFrame take_waiting_frame() {
+        for (int priority = 0; priority < waiting_frames.length; priority++) {
+            if (waiting_count[priority] > 0) {
+                final MinFrame[] waiting = waiting_frames[priority];
+                final MinFrame frame = waiting[waiting_head[priority]];
+                waiting[waiting_head[priority]] = null;
+                waiting_head[priority] = (waiting_head[priority] + 1) % waiting.length;
+                waiting_count[priority]--;
+                waiting_total--;
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    private MinFrame received_frame(final byte id_control, final byte[] payload, final int length, final int seq,
+                                    final boolean transport) {
+        if (rx_frame_pool != null) {
+            final MinFrame frame = rx_frame_pool.poll();
+            if (frame != null) {
+                frame.set(id_control, payload, length, seq, transport);
+                frame.leased = true;
+                return frame;
+            }
+        }
+        // # payload buffer belongs to the decoder, copy only frames which are kept
+        return new MinFrame(id_control, Arrays.copyOf(payload, length), seq, transport, false);
+    }
+
+    private void transport_fifo_reset(final TransportResetException reason) {
+
+        ArrayList<CompletableFuture<Void>> dropped = null;
+        MinFrame frame;
+        while ((frame = submitted_frames.poll()) != null) {
+            if (frame.future != null) {
+                dropped = add_future(dropped, frame);
+            }
+            recycle_frame(frame);
+        }
+        while ((frame = take_waiting_frame()) != null) {
+            if (frame.future != null) {
+                dropped = add_future(dropped, frame);
+            }
+            recycle_frame(frame);
+        }
+        while (transport_fifo_count > 0) {
+            if (transport_fifo_get(0).future != null) {
+                dropped = add_future(dropped, transport_fifo_get(0));
+            }
+            transport_fifo_pop();
+        }
+        capacity_freed();
+        retransmit_timers.clear();
+        final long currentNs = clock.nanoTime();
+        last_received_anything_ns = currentNs;
+        last_sent_ack_time_ns = currentNs;
+        // # nothing sent or received yet
+        last_sent_frame_ns = currentNs - idle_timeout_ns;
+        last_received_frame_ns = currentNs - idle_timeout_ns;
         sn_min = 0;
         sn_max = 0;
         rn = 0;
+        if (payload_codec != null) {
+            payload_codec.reset();
+        }
+        congestion_window = Math.min(8, max_window_size);
+        acked_in_window = 0;
+
+        // # transport is consistent again when dependent actions run
+        if (dropped != null) {
+            for (final CompletableFuture<Void> future : dropped) {
+                future.completeExceptionally(reason);
+            }
+        }
+    }
+
+    private static ArrayList<CompletableFuture<Void>> add_future(ArrayList<CompletableFuture<Void>> futures,
+                                                               final MinFrame frame) {
+        if (futures == null) {
+            futures = new ArrayList<CompletableFuture<Void>>();
+        }
+        futures.add(frame.future);
+        frame.future = null;
+        return futures;
     }
 
     private void rx_reset() {
-        stashed_rx_dict.clear();
+        stashed_rx_frames.clear();
+        nack_outstanding = None;
+        ack_pending = false;
         rx_list.clear();
     }
 
     private void transport_fifo_pop() {
 
-        MinFrame popped = transport_fifo.remove(0);
-        // System.out.println("popped: " + popped);
-        // System.out.println("Remaining: " + transport_fifo.size());
-        // for (MinFrame f : transport_fifo) {
-        //     System.out.println(" stalled: " + f);
-        // }
+        final MinFrame popped = transport_fifo[transport_fifo_head];
+        transport_fifo[transport_fifo_head] = null;
+        transport_fifo_head = (transport_fifo_head + 1) % transport_fifo.length;
+        transport_fifo_count--;
+        retransmit_timers.cancel(popped);
+        recycle_frame(popped);
     }
 
     private MinFrame transport_fifo_get(final int index) {
-        return transport_fifo.get(index);
+        return transport_fifo[(transport_fifo_head + index) % transport_fifo.length];
     }
 
-    private void min_frame_received(final byte min_id_control, final byte[] min_payload, final int min_seq) {
-
-        last_received_anything_ms = System.currentTimeMillis();
+    private void min_frame_received(final byte min_id_control, final byte[] min_payload, final int min_length,
+                                    final int min_seq) {
 
-        //System.out.println("received anything ctrl<"+Integer.toHexString(min_id_control & 0xff)+"> seq<"+min_seq+">");
+        last_received_anything_ns = now_ns;
 
         if ((min_id_control & 0x80) != 0) {
 
             if (min_id_control == ACK) {
+                // # plain ACK carries rn as payload too
+                if (min_length > 0 && (min_payload[0] & 0xff) != min_seq) {
+                    trace(MinWireTracer.NACK_RECEIVED, min_id_control, min_seq, min_payload[0] & 0xff);
+                } else {
+                    trace(MinWireTracer.ACK_RECEIVED, min_id_control, min_seq, 0);
+                }
                 final int number_acked = (min_seq - sn_min) & 0xff;
                 final int number_in_window = (sn_max - sn_min) & 0xff;
-                //System.out.println("acked: "+(min_seq & 0xff)+", number acked: "+number_acked);
 
                 if (number_acked <= number_in_window) {
                     sn_min = min_seq;
@@ -290,55 +1072,85 @@ public class MinTransport {
                     if (new_number_in_window + number_acked != number_in_window)
                         throw new AssertionError();
 
+                    if (number_acked > 0) {
+                        // # RTT of the newest acknowledged frame, unless it was retransmitted (Karn)
+                        final MinFrame newest = transport_fifo_get(number_acked - 1);
+                        if (newest.transmissions == 1) {
+                            rtt_measured(now_ns - newest.last_sent_time);
+                        }
+                    }
                     for (int i = 0; i < number_acked; i++) {
+                        final MinFrame acked = transport_fifo_get(0);
+                        final CompletableFuture<Void> future = acked.future;
+                        acked.future = null;
+                        metrics.frame_acknowledged(now_ns - acked.queued_time);
                         transport_fifo_pop();
+                        if (future != null) {
+                            future.complete(null);
+                        }
+                    }
+                    if (number_acked > 0) {
+                        ack_wait_since_ns = now_ns;
+                        capacity_freed();
+                    }
+                    grow_window(number_acked);
+
+                    // # NACK: payload holds sequence number up to which remote requests retransmits
+                    if (min_length > 0) {
+                        final int number_nacked = Math.min((min_payload[0] - min_seq) & 0xff, new_number_in_window);
+                        if (number_nacked > 0) {
+                            metrics.nack_received();
+                            shrink_window();
+                            for (int i = 0; i < number_nacked; i++) {
+                                transport_fifo_send(transport_fifo_get(i));
+                            }
+                        }
                     }
                 } else {
-                    //System.out.println("spurious ack");
-                    spurious_acks++;
+                    metrics.spurious_ack();
                 }
             } else if (min_id_control == RESET) {
-                resets_received++;
-                transport_fifo_reset();
+                trace(MinWireTracer.RESET_RECEIVED, min_id_control, 0, 0);
+                metrics.reset_received();
+                transport_fifo_reset(new TransportResetException("reset by the other end"));
                 rx_reset();
             } else {
-                final MinFrame min_frame = new MinFrame(min_id_control, min_payload, min_seq, true, false);
+                trace(MinWireTracer.FRAME_RECEIVED, min_id_control, min_seq, min_length);
+                last_received_frame_ns = now_ns;
 
-                last_received_frame_ms = System.currentTimeMillis();
-                //System.out.println("received frame: "+min_frame);
+                if (min_seq == rn && !has_room(min_id_control & 0x3f, rx_list.size())) {
+                    // # subscriber or handler is behind, not accepted nor acknowledged, the other end retransmits it later
+                    metrics.receiver_backpressure_drop();
+                    return;
+                }
+                final MinFrame min_frame = received_frame(min_id_control, min_payload, min_length, min_seq, true);
 
                 if (min_seq == rn) {
-                    rx_list.add(min_frame);
-
-                    rn = (rn + 1) & 0xff;
-                    final Integer key = new Integer(rn);
-
-                    if (stashed_rx_dict.containsKey(key)) {
-                        final MinFrame stashed_frame = stashed_rx_dict.remove(key);
-                        if (stashed_frame != null) {
-                            rx_list.add(stashed_frame);
-                            rn = (rn + 1) & 0xff;
-                            if (rn == nack_outstanding) {
-                                nack_outstanding = None;
-                            }
-                        }
+                    // # a copy stashed earlier is no longer needed
+                    final MinFrame duplicate = stashed_rx_frames.take(min_seq);
+                    if (duplicate != null) {
+                        metrics.duplicate_frame();
+                        duplicate.release();
+                    }
+                    if (!accept_in_order(min_frame) || !deliver_stashed()) {
+                        return;
                     }
 
-                    if ((nack_outstanding == None) && (stashed_rx_dict.size() > 0)) {
+                    // # stashed frame at rn waits for room at subscriber, nothing is missing
+                    if ((nack_outstanding == None) && !stashed_rx_frames.isEmpty() && !stashed_rx_frames.contains(rn)) {
 
-                        final TreeSet<Integer> keySet = new TreeSet<Integer>(stashed_rx_dict.keySet());
-                        final int earliest_seq = ((Integer) keySet.first()).intValue();
+                        final int earliest_seq = stashed_rx_frames.earliest(rn);
 
                         if (((earliest_seq - rn) & 0xff) < rx_window_size) {
                             nack_outstanding = earliest_seq;
                             send_nack(earliest_seq);
                         } else {
                             nack_outstanding = None;
-                            stashed_rx_dict.clear();
-                            send_ack();
+                            stashed_rx_frames.clear();
+                            ack_frame_received();
                         }
                     } else {
-                        send_ack();
+                        ack_frame_received();
                     }
                 } else {
                     if (((min_seq - rn) & 0xff) < rx_window_size) {
@@ -349,297 +1161,286 @@ public class MinTransport {
                         } else {
                             // min_logger.debug("(Outstanding NACK)")
                         }
-                        stashed_rx_dict.put(new Integer(min_seq), min_frame);
+                        if (stashed_rx_frames.contains(min_seq)) {
+                            metrics.duplicate_frame();
+                        }
+                        stashed_rx_frames.put(min_seq, min_frame);
                     } else {
                         // if min_seq in self._stashed_rx_dict and min_payload !=
                         // self._stashed_rx_dict[min_seq].payload:
                         // min_logger.error("Inconsistency between frame contents")
-                        sequence_mismatch_drops++;
+                        // # frames just behind rn were already delivered
+                        if (((rn - 1 - min_seq) & 0xff) < MinTransportConfig.MAX_WINDOW) {
+                            metrics.duplicate_frame();
+                        }
+                        metrics.sequence_mismatch_drop();
+                        min_frame.release();
                     }
                 }
             }
         } else {
-            final MinFrame min_frame = new MinFrame(min_id_control, min_payload, 0, false, false);
-            rx_list.add(min_frame);
+            trace(MinWireTracer.FRAME_RECEIVED, min_id_control, 0, min_length);
+            if (!has_room(min_id_control & 0x3f, rx_list.size())) {
+                metrics.receiver_backpressure_drop(); // # not retransmitted, lost
+                return;
+            }
+            final MinFrame min_frame = received_frame(min_id_control, min_payload, min_length, 0, false);
+            hand_off(min_frame);
         }
     }
 
-    private void rx_bytes(final byte[] data) {
+    // # deliver whole contiguous run of stashed frames, as far as subscriber has room,
+    // # false if the link was reset
+    private boolean deliver_stashed() {
+        MinFrame stashed_frame;
+        while ((stashed_frame = stashed_rx_frames.peek(rn)) != null && has_room(stashed_frame.getId(), rx_list.size())) {
+            stashed_rx_frames.take(rn);
+            if (!accept_in_order(stashed_frame)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        // for (final byte b : data) {
-        //     System.out.print((((b & 0xff) > 15) ? " 0x" : " 0x0") + Integer.toHexString(b & 0xff));
-        // }
-        // System.out.println("");
+    // # frame at rn waits for room at its receiver, driver thread
+    private boolean stashed_deliverable() {
+        final MinFrame stashed_frame = stashed_rx_frames.peek(rn);
+        return stashed_frame != null && has_room(stashed_frame.getId(), 0);
+    }
 
-        for (final byte b : data) {
-            if (rx_header_bytes_seen == 2) {
-                rx_header_bytes_seen = 0;
-                if (b == HEADER_BYTE) {
-                    rx_frame_state = State.RECEIVING_ID_CONTROL;
-                    continue;
-                }
-                if (b == STUFF_BYTE) {
-                    // # Discard this byte; carry on receiving the next character
-                    continue;
-                }
-                rx_frame_state = State.SEARCHING_FOR_SOF;
-                continue;
+    // # room for another frame of min_id at its handler or receive publisher, pending frames not published yet
+    private boolean has_room(final int min_id, final int pending) {
+        // # frames of replaced handlers go first
+        return retired_counts[min_id] == 0 && destination_has_room(min_id, pending);
+    }
+
+    private boolean destination_has_room(final int min_id, final int pending) {
+        final MinHandlerQueue handler = handlers[min_id];
+        if (handler != null) {
+            return handler.inline() || handler.has_room();
+        }
+        return receive_publisher.has_room(pending);
+    }
+
+    // # frame to its handler queue or to the list returned by poll(), room was checked
+    private void hand_off(final MinFrame frame) {
+        final MinHandlerQueue handler = handlers[frame.getId()];
+        if (handler != null && !handler.inline()) {
+            if (!handler.offer(frame)) {
+                throw new AssertionError();
             }
-            if (b == HEADER_BYTE) {
-                rx_header_bytes_seen++;
-            } else {
-                rx_header_bytes_seen = 0;
-            }
-
-            switch (rx_frame_state) {
-                case SEARCHING_FOR_SOF:
-                    break; // no op
-                case RECEIVING_ID_CONTROL: {
-                    rx_frame_id_control = b;
-                    // rx_payload_bytes = 0;
-                    if ((rx_frame_id_control & 0x80) != 0) {
-                        //System.out.println("received id: 0x"+Integer.toHexString(rx_frame_id_control & 0xff));
-                        rx_frame_state = State.RECEIVING_SEQ;
-                    } else {
-                        rx_frame_state = State.RECEIVING_LENGTH;
-                    }
-                }
-                    break;
-                case RECEIVING_SEQ: {
-                    rx_frame_seq = b;
-                    rx_frame_state = State.RECEIVING_LENGTH;
-                    //System.out.println("received seq: 0x"+Integer.toHexString(rx_frame_seq & 0xff));
-                }
-                    break;
-                case RECEIVING_LENGTH: {
-                    rx_frame_length = b;
-                    rx_control = b;
-                    rx_frame_buf = new ByteArrayOutputStream(128); // we expect short messages
-                    if (rx_frame_length > 0) {
-                        rx_frame_state = State.RECEIVING_PAYLOAD;
-                    } else {
-                        rx_frame_state = State.RECEIVING_CHECKSUM_3;
-                    }
-                }
-                    break;
-                case RECEIVING_PAYLOAD: {
-                    // suboptimal
-                    rx_frame_buf.write(b);
-                    rx_frame_length--;
-                    if (rx_frame_length == 0) {
-                        rx_frame_state = State.RECEIVING_CHECKSUM_3;
-                    }
-                }
-                    break;
-                case RECEIVING_CHECKSUM_3: {
-                    rx_frame_checksum = (b << 24) & 0xff000000;
-                    rx_frame_state = State.RECEIVING_CHECKSUM_2;
-                }
-                    break;
-                case RECEIVING_CHECKSUM_2: {
-                    rx_frame_checksum |= (b << 16) & 0x00ff0000;
-                    rx_frame_state = State.RECEIVING_CHECKSUM_1;
+            metrics.frames_received(1);
+        } else {
+            rx_list.add(frame);
+        }
+    }
 
-                }
-                    break;
-                case RECEIVING_CHECKSUM_1: {
-                    rx_frame_checksum |= (b << 8) & 0x0000ff00;
-                    rx_frame_state = State.RECEIVING_CHECKSUM_0;
+    private void take_handlers() {
+        handlers_changed = false;
+        inline_handlers = false;
+        for (int id = 0; id < handlers.length; id++) {
+            final MinHandlerQueue replaced = handlers[id];
+            handlers[id] = pending_handlers.get(id);
+            if (replaced != null && replaced != handlers[id] && !replaced.inline()) {
+                retire_handler(replaced);
+            }
+            if (handlers[id] != null && handlers[id].inline()) {
+                inline_handlers = true;
+            }
+        }
+    }
 
-                }
-                    break;
-                case RECEIVING_CHECKSUM_0: {
-                    rx_frame_checksum |= b & 0xff;
-                    final CRC32 crc32 = new CRC32();
-                    // crc32.update(prolog, 0, expectedPrologSize - 4); // last 4 bytes reserved for
-                    // CRC
-
-                    // ByteBuffer b = ByteBuffer.allocate(4);
-                    // b.order(ByteOrder.BIG_ENDIAN); // optional, the initial order of a byte
-                    // buffer is always BIG_ENDIAN.
-                    // b.putInt((int)crc32.getValue());
-
-                    if ((rx_frame_id_control & 0x80) != 0) {
-                        crc32.update(rx_frame_id_control);
-                        crc32.update(rx_frame_seq);
-                        crc32.update(rx_control);
-                        crc32.update(rx_frame_buf.toByteArray());
-                    } else {
-                        crc32.update(rx_frame_id_control);
-                        crc32.update(rx_control);
-                        crc32.update(rx_frame_buf.toByteArray());
-                    }
+    // # frames of handler replaced earlier came later than frames it passed on to this one
+    private void retire_handler(final MinHandlerQueue replaced) {
+        int index = 0;
+        while (index < retired_handlers.size() && retired_handlers.get(index).min_id != replaced.min_id) {
+            index++;
+        }
+        retired_handlers.add(index, replaced);
+        retired_counts[replaced.min_id]++;
+    }
 
-                    if (rx_frame_checksum != (int) crc32.getValue()) {
-                        //System.out.println("CRC mismatch");
-                        rx_frame_state = State.SEARCHING_FOR_SOF;
+    // # frames left by replaced handlers to the current handler of their minId, as room allows,
+    // # returns number of frames added to rx_list
+    private int pass_on_retired() {
+        int passed_on = 0;
+        long blocked = 0; // # minIds with an older retired handler still holding frames
+        for (int i = 0; i < retired_handlers.size();) {
+            final MinHandlerQueue retired = retired_handlers.get(i);
+            final int id = retired.min_id;
+            if ((blocked & (1L << id)) == 0 && retired.take_over()) {
+                MinFrame frame;
+                while (destination_has_room(id, rx_list.size()) && (frame = retired.take()) != null) {
+                    final MinHandlerQueue handler = handlers[id];
+                    if (handler != null && !handler.inline()) {
+                        if (!handler.offer(frame)) {
+                            throw new AssertionError();
+                        }
                     } else {
-                        rx_frame_state = State.RECEIVING_EOF;
+                        rx_list.add(frame);
+                        passed_on++;
                     }
                 }
-                    break;
-                case RECEIVING_EOF: {
-                    if (b == EOF_BYTE) {
-                        // # Frame received OK, pass up frame for handling")
-                        min_frame_received(rx_frame_id_control, rx_frame_buf.toByteArray(), rx_frame_seq & 0xff);
-                    } else {
-                        //System.out.println("No EOF received, dropping frame");
-                    }
-
-                    // # Look for next frame
-                    rx_frame_state = State.SEARCHING_FOR_SOF;
-
+                if (retired.is_empty()) {
+                    retired_handlers.remove(i);
+                    retired_counts[id]--;
+                    continue;
                 }
-                    break;
-                default:
-                    System.out.println("Unexpected state, state machine reset");
-                    // # Should never get here but in case we do just reset
-                    rx_frame_state = State.SEARCHING_FOR_SOF;
-                    break;
             }
+            blocked |= 1L << id;
+            i++;
         }
+        return passed_on;
     }
 
-    private byte[] on_wire_bytes(final MinFrame frame) {
-
-        byte[] prolog;
-
-        int expectedPrologSize;
-        int headerSize;
-
-        if (frame.is_transport) {
-            // header (3 bytes + payload + crc32 (4 bytes))
-            headerSize = 3;
-            expectedPrologSize = headerSize + frame.payload.length + 4;
-        } else {
-            // header (2 bytes + payload + crc32 (4 bytes))
-            headerSize = 2;
-            expectedPrologSize = headerSize + frame.payload.length + 4;
-        }
-
-        prolog = new byte[expectedPrologSize];
-
-        if (frame.is_transport) {
-            prolog[0] = (byte) ((frame.minId | 0x80) & 0xff);
-            prolog[1] = frame.seq;
-            prolog[2] = (byte) (frame.payload.length & 0xff);
-        } else {
-            prolog[0] = (byte) (frame.minId & 0xff);
-            prolog[1] = (byte) (frame.payload.length & 0xff);
+    private void retry_handlers() {
+        handlers_rejected = false;
+        for (final MinHandlerQueue handler : handlers) {
+            if (handler != null && !handler.inline()) {
+                handler.retry();
+            }
         }
+    }
 
-        System.arraycopy(frame.payload, 0, prolog, headerSize, frame.payload.length);
-
-        final CRC32 crc32 = new CRC32();
-        crc32.update(prolog, 0, expectedPrologSize - 4); // last 4 bytes reserved for CRC
-
-        final ByteBuffer b = ByteBuffer.allocate(4);
-        b.order(ByteOrder.BIG_ENDIAN); // optional, the initial order of a byte buffer is always BIG_ENDIAN.
-        b.putInt((int) crc32.getValue());
-
-
-        System.arraycopy(b.array(), 0, prolog, headerSize + frame.payload.length, 4);
-
-        // 2x size would be always enough
-        // if not, ByteArrayOutputStream resizes automatically
-        final ByteArrayOutputStream stuffed = new ByteArrayOutputStream(3 + expectedPrologSize * 2);
-
-        stuffed.write(HEADER_BYTE);
-        stuffed.write(HEADER_BYTE);
-        stuffed.write(HEADER_BYTE);
-
-        int count = 0;
-
-        // escape double 0xaa 0xaa sequence with 0x55 stuff byte
-
-        for (int i = 0; i < prolog.length; i++) {
+    // # executor rejected drain task, retried within handler_retry_ns, any thread
+    void handler_rejected() {
+        handlers_rejected = true;
+    }
 
-            stuffed.write(prolog[i]);
-            if (prolog[i] == HEADER_BYTE) {
-                count++;
-                if (count == 2) {
-                    stuffed.write(STUFF_BYTE);
-                    count = 0;
-                }
+    // # frames of inline handlers are taken out of the list returned by poll()
+    private void dispatch_inline() {
+        int kept = 0;
+        for (int i = 0; i < rx_list.size(); i++) {
+            final MinFrame frame = rx_list.get(i);
+            final MinHandlerQueue handler = handlers[frame.getId()];
+            if (handler != null) {
+                handler.handler.frameReceived(frame);
             } else {
-                count = 0;
+                rx_list.set(kept++, frame);
             }
         }
+        while (rx_list.size() > kept) {
+            rx_list.remove(rx_list.size() - 1);
+        }
+    }
 
-        stuffed.write(EOF_BYTE);
-
-        byte[] retArray = stuffed.toByteArray();
-
-        // System.out.print(System.currentTimeMillis()+": stuffed");
-        // for (byte bt : retArray) {
-        //     System.out.print(((bt & 0xff) > 15 ? " 0x":" 0x0")+Integer.toHexString(bt & 0xff));
-        // }
-        // System.out.println(" ");
+    // # frame at rn, decompressed here as frames must be decompressed in sequence order,
+    // # false if it could not be and the link was reset
+    private boolean accept_in_order(final MinFrame frame) {
+        if (payload_codec != null && payload_codec.enabled(frame.getId()) && !payload_codec.decompress(frame)) {
+            metrics.decompression_error();
+            frame.release();
+            decompression_reset(frame.getId());
+            return false;
+        }
+        hand_off(frame);
+        rn_advance();
+        return true;
+    }
 
-        return retArray;
+    // # previous payloads of the two ends are out of step or dictionaries differ,
+    // # both ends start the chain again, frames accepted before stay in rx_list
+    private void decompression_reset(final int min_id) {
+        send_reset();
+        transport_fifo_reset(new TransportResetException("decompression failed, minId "+min_id));
+        stashed_rx_frames.clear();
+        nack_outstanding = None;
+        ack_pending = false;
     }
 
-    private MinFrame find_oldest_frame() {
-        if (transport_fifo.size() == 0) {
-            throw new AssertionError();
+    private void rn_advance() {
+        rn = (rn + 1) & 0xff;
+        if (rn == nack_outstanding) {
+            nack_outstanding = None;
         }
+    }
 
-        final int window_size = (sn_max - sn_min) & 0xff;
-        final long currentTimeMs = System.currentTimeMillis();
-        MinFrame oldest_frame = transport_fifo.get(0);
-        long longest_elapsed_time = currentTimeMs - oldest_frame.last_sent_time;
+    private void frame_send(final byte id_control, final int seq, final byte[] payload, final int length) {
+        if (tx_buf().remaining() < MinFrameEncoder.MAX_FRAME_SIZE) {
+            tx_flush();
+        }
+        encoder.encode(tx_buf, id_control, seq, payload, 0, length);
+    }
 
-        for (int i = 0; i < window_size; i++) {
+    // # idle links of a large MinTransportGroup never allocate it
+    private ByteBuffer tx_buf() {
+        if (tx_buf == null) {
+            tx_buf = ByteBuffer.allocate(tx_buf_size);
+        }
+        return tx_buf;
+    }
 
-            final MinFrame frame = transport_fifo.get(i);
-            final long elapsed = currentTimeMs - frame.last_sent_time;
-            if (elapsed >= longest_elapsed_time) {
-                oldest_frame = frame;
-                longest_elapsed_time = elapsed;
+    private void tx_flush() {
+        if (tx_buf != null && tx_buf.position() > 0) {
+            tx_buf.flip();
+            final int length = tx_buf.remaining();
+            if (tracer != null) {
+                tracer.bytes(MinWireTracer.TX_BYTES, clock.nanoTime(), tx_buf.array(), 0, length);
+            }
+            try {
+                serialInterface.serialWrite(tx_buf);
+                metrics.serial_write(length);
+            } finally {
+                tx_buf.clear();
             }
         }
-        return oldest_frame;
     }
 
     private void transport_fifo_send(final MinFrame frame) {
-        final byte[] owb = on_wire_bytes(frame);
-        frame.last_sent_time = System.currentTimeMillis();
-        serialInterface.serialWrite(owb);
+        metrics.frame_sent(frame.transmissions > 0);
+        frame_send((byte) ((frame.minId | 0x80) & 0xff), frame.seq, frame.payload, frame.length);
+        // # after staging, which may have flushed earlier frames
+        trace((frame.transmissions > 0) ? MinWireTracer.FRAME_RETRANSMITTED : MinWireTracer.FRAME_SENT,
+              frame.minId | 0x80, frame.seq, frame.length);
+        frame.last_sent_time = now_ns;
+        frame.transmissions++;
+        retransmit_timers.schedule(frame, now_ns + retransmit_timeout_ns());
     }
 
-    private void send_ack() {
-
-        final byte[] payload = new byte[] { (byte) (rn & 0xff) };
-        final MinFrame ack_frame = new MinFrame(ACK, payload, rn, true, true);
-
-        //System.out.println("sending ack: "+ack_frame);
+    private void ack_frame_received() {
+        if (!delayed_ack) {
+            send_ack();
+        } else if (!ack_pending) {
+            ack_pending = true;
+            ack_pending_since_ns = now_ns;
+        }
+    }
 
-        final byte[] owb = on_wire_bytes(ack_frame);
-        last_sent_ack_time_ms = System.currentTimeMillis();
-        serialInterface.serialWrite(owb);
+    private void send_ack() {
+        ack_pending = false;
+        last_sent_ack_time_ns = now_ns;
+        final byte[] ack_frame = ack_frames[rn & 0xff];
+        if (tx_buf().remaining() < ack_frame.length) {
+            tx_flush();
+        }
+        tx_buf.put(ack_frame);
+        metrics.ack_sent();
+        trace(MinWireTracer.ACK_SENT, ACK, rn, 0);
         // # For a regular ACK we request no additional retransmits
     }
 
     private void send_nack(final int to) {
 
         // # For a NACK we send an ACK but also request some frame retransmits
-        final byte[] payload = new byte[] { (byte) (to & 0xff) };
-        final MinFrame ack_frame = new MinFrame(ACK, payload, rn, true, true);
-
-        //System.out.println("NACK[to:"+to+"]: "+ack_frame);
-        Thread.dumpStack();
-
-        final byte[] owb = on_wire_bytes(ack_frame);
-        last_sent_ack_time_ms = System.currentTimeMillis();
-        serialInterface.serialWrite(owb);
+        nack_payload[0] = (byte) (to & 0xff);
+        ack_pending = false; // # NACK acknowledges up to rn as well
+        last_sent_ack_time_ns = now_ns;
+        frame_send(ACK, rn, nack_payload, 1);
+        metrics.ack_sent();
+        metrics.nack_sent();
+        trace(MinWireTracer.NACK_SENT, ACK, rn, to & 0xff);
     }
 
     private void send_reset() {
+        frame_send(RESET, 0, empty_payload, 0);
+        metrics.reset_sent();
+        trace(MinWireTracer.RESET_SENT, RESET, 0, 0);
+    }
 
-        final byte[] payload = new byte[0];
-        final MinFrame ack_frame = new MinFrame(RESET, payload, 0, true, true);
-
-        final byte[] owb = on_wire_bytes(ack_frame);
-        serialInterface.serialWrite(owb);
+    // # stamped now, earlier writes of the same poll may have blocked
+    private void trace(final byte type, final int id_control, final int seq, final int value) {
+        if (tracer != null) {
+            tracer.event(type, clock.nanoTime(), id_control, seq, value);
+        }
     }
 }
@@ -0,0 +1,412 @@
+package pl.skifosoft.minprotocol;
+
+import java.util.Arrays;
+
+/**
+ * Immutable configuration of MinTransport limits and timeouts.
+ * Create with MinTransportConfig.builder(), unset values keep their defaults.
+ */
+public final class MinTransportConfig {
+
+    /**
+     * Largest send or receive window, half of 8-bit sequence space,
+     * so that old and new frames are never confused.
+     */
+    public static final int MAX_WINDOW = 127;
+
+    /**
+     * Largest number of priority levels.
+     */
+    public static final int MAX_PRIORITY_LEVELS = 8;
+
+    final int transport_fifo_size;
+    final int max_window_size;
+    final int rx_window_size;
+    final int idle_timeout_ms;
+    final int retransmit_timeout_ms;
+    final int keep_alive_timeout_ms;
+    final boolean adaptive_window;
+    final boolean adaptive_retransmit_timeout;
+    final int min_retransmit_timeout_ms;
+    final int max_retransmit_timeout_ms;
+    final int rx_frame_pool_size;
+    final boolean delayed_ack;
+    final int ack_delay_ms;
+    final MinClock clock;
+    final int ack_timeout_ms;
+    final boolean latency_histograms;
+    final byte[][] compression_dictionaries; // # null if compression is not used
+    final int[] priority_fifo_sizes; // # FIFO limit of each priority level, 0 most urgent
+    final int[] priorities; // # default priority of each minId
+
+    private MinTransportConfig(final Builder builder) {
+        this.max_window_size = builder.max_window_size;
+        this.rx_window_size = builder.rx_window_size;
+        this.idle_timeout_ms = builder.idle_timeout_ms;
+        this.retransmit_timeout_ms = builder.retransmit_timeout_ms;
+        this.keep_alive_timeout_ms = builder.keep_alive_timeout_ms;
+        this.adaptive_window = builder.adaptive_window;
+        this.adaptive_retransmit_timeout = builder.adaptive_retransmit_timeout;
+        this.min_retransmit_timeout_ms = builder.min_retransmit_timeout_ms;
+        this.max_retransmit_timeout_ms = builder.max_retransmit_timeout_ms;
+        this.rx_frame_pool_size = builder.rx_frame_pool_size;
+        this.delayed_ack = builder.delayed_ack;
+        this.ack_delay_ms = builder.ack_delay_ms;
+        this.clock = builder.clock;
+        this.ack_timeout_ms = builder.ack_timeout_ms;
+        this.latency_histograms = builder.latency_histograms;
+        this.compression_dictionaries = (builder.compression_dictionaries != null)
+            ? builder.compression_dictionaries.clone() : null;
+        this.priority_fifo_sizes = (builder.priority_fifo_sizes != null)
+            ? builder.priority_fifo_sizes.clone() : new int[] { builder.transport_fifo_size };
+        int total = 0;
+        for (final int size : priority_fifo_sizes) {
+            total += size;
+        }
+        this.transport_fifo_size = total;
+        this.priorities = new int[64];
+        for (int id = 0; id < 64; id++) {
+            final int priority = builder.priorities[id];
+            if (priority >= priority_fifo_sizes.length)
+                throw new IllegalArgumentException("priority of minId "+id+": "+priority+", only "
+                                                   +priority_fifo_sizes.length+" levels");
+            // # minIds without priority are least urgent
+            priorities[id] = (priority >= 0) ? priority : priority_fifo_sizes.length - 1;
+        }
+    }
+
+    /**
+     * @return builder with default values
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return configuration with default values
+     */
+    public static MinTransportConfig defaults() {
+        return new Builder().build();
+    }
+
+    public static final class Builder {
+
+        private int transport_fifo_size = 100;
+        private int max_window_size = 8;
+        private int rx_window_size = 16;
+        private int idle_timeout_ms = 30000;
+        private int retransmit_timeout_ms = 50;
+        private int keep_alive_timeout_ms = 25;
+        private boolean adaptive_window = false;
+        private boolean adaptive_retransmit_timeout = false;
+        private int min_retransmit_timeout_ms = 10;
+        private int max_retransmit_timeout_ms = 10000;
+        private int rx_frame_pool_size = 0;
+        private boolean delayed_ack = false;
+        private int ack_delay_ms = 0;
+        private MinClock clock = MinClock.SYSTEM;
+        private int ack_timeout_ms = 0;
+        private boolean latency_histograms = true;
+        private byte[][] compression_dictionaries = null;
+        private int[] priority_fifo_sizes = null;
+        private final int[] priorities = new int[64];
+
+        private Builder() {
+            Arrays.fill(priorities, -1);
+        }
+
+        /**
+         * Maximal number of queued frames, including frames sent but not acknowledged yet.
+         * Ignored if priorityLevels() are set.
+         * Default is 100.
+         *
+         * @param size number of frames, at least 1
+         * @return this builder
+         */
+        public Builder transportFifoSize(final int size) {
+            if (size < 1)
+                throw new IllegalArgumentException("transport FIFO size: "+size);
+            transport_fifo_size = size;
+            return this;
+        }
+
+        /**
+         * Maximal number of frames sent but not acknowledged yet.
+         * Increase it on links with high bandwidth-delay product.
+         * Must not exceed receive window of the other end.
+         * Default is 8.
+         *
+         * @param size number of frames, 1 - 127
+         * @return this builder
+         */
+        public Builder maxWindowSize(final int size) {
+            if (size < 1 || size > MAX_WINDOW)
+                throw new IllegalArgumentException("window size: "+size+", must be 1 - "+MAX_WINDOW);
+            max_window_size = size;
+            return this;
+        }
+
+        /**
+         * Number of sequence numbers ahead of expected one, for which out of order frames
+         * are stashed instead of dropped.
+         * Default is 16.
+         *
+         * @param size number of frames, 1 - 127
+         * @return this builder
+         */
+        public Builder rxWindowSize(final int size) {
+            if (size < 1 || size > MAX_WINDOW)
+                throw new IllegalArgumentException("rx window size: "+size+", must be 1 - "+MAX_WINDOW);
+            rx_window_size = size;
+            return this;
+        }
+
+        /**
+         * Remote is considered disconnected when nothing is received for that time.
+         * Default is 30000 ms.
+         *
+         * @param timeoutMs timeout in milliseconds
+         * @return this builder
+         */
+        public Builder idleTimeout(final int timeoutMs) {
+            if (timeoutMs < 1)
+                throw new IllegalArgumentException("idle timeout: "+timeoutMs);
+            idle_timeout_ms = timeoutMs;
+            return this;
+        }
+
+        /**
+         * See MinTransport.setRetransmitTimeout().
+         * Default is 50 ms.
+         *
+         * @param timeoutMs timeout in milliseconds
+         * @return this builder
+         */
+        public Builder retransmitTimeout(final int timeoutMs) {
+            retransmit_timeout_ms = (timeoutMs >= 0) ? timeoutMs : 0;
+            return this;
+        }
+
+        /**
+         * See MinTransport.setKeepAliveTimeout().
+         * Minimal and default value is 25 ms.
+         *
+         * @param timeoutMs timeout in milliseconds
+         * @return this builder
+         */
+        public Builder keepAliveTimeout(final int timeoutMs) {
+            keep_alive_timeout_ms = (timeoutMs > 25) ? timeoutMs : 25;
+            return this;
+        }
+
+        /**
+         * In adaptive mode number of frames in flight starts at min(8, maxWindowSize),
+         * grows by one after every window of acknowledged frames and halves
+         * when frames have to be retransmitted, never exceeding maxWindowSize.
+         * Disabled by default, window is always maxWindowSize then.
+         *
+         * @param adaptive true to enable adaptive window
+         * @return this builder
+         */
+        public Builder adaptiveWindow(final boolean adaptive) {
+            adaptive_window = adaptive;
+            return this;
+        }
+
+        /**
+         * In adaptive mode retransmit timeout is computed from round trip time measured
+         * for the newest frame confirmed by each ACK, unless it was retransmitted (Karn's rule),
+         * smoothed as proposed by Jacobson and Karels, and doubled every time frames
+         * have to be retransmitted. Retransmit timeout set by retransmitTimeout()
+         * is used only until the first measurement.
+         * Disabled by default.
+         *
+         * @param adaptive true to enable adaptive retransmit timeout
+         * @return this builder
+         */
+        public Builder adaptiveRetransmitTimeout(final boolean adaptive) {
+            adaptive_retransmit_timeout = adaptive;
+            return this;
+        }
+
+        /**
+         * Bounds of adaptive retransmit timeout.
+         * Default is 10 - 10000 ms.
+         *
+         * @param minMs lower bound in milliseconds
+         * @param maxMs upper bound in milliseconds
+         * @return this builder
+         */
+        public Builder retransmitTimeoutBounds(final int minMs, final int maxMs) {
+            if (minMs < 1 || maxMs < minMs)
+                throw new IllegalArgumentException("retransmit timeout bounds: "+minMs+" - "+maxMs);
+            min_retransmit_timeout_ms = minMs;
+            max_retransmit_timeout_ms = maxMs;
+            return this;
+        }
+
+        /**
+         * Number of preallocated frames leased to receivers. Frames received while pool
+         * is not empty are taken from it and must be given back by MinFrame.release(),
+         * other frames are allocated as usual.
+         * Default is 0, receive frame pool disabled.
+         *
+         * @param size number of frames
+         * @return this builder
+         */
+        public Builder rxFramePoolSize(final int size) {
+            if (size < 0)
+                throw new IllegalArgumentException("rx frame pool size: "+size);
+            rx_frame_pool_size = size;
+            return this;
+        }
+
+        /**
+         * In delayed ACK mode frames received in order are not acknowledged one by one,
+         * single cumulative ACK for the latest one is sent after ackDelay(), at the earliest
+         * when all bytes read by the poll are processed. NACKs are still sent immediately.
+         * Peer sees plain ACK frames, so it works with any MIN implementation.
+         * Disabled by default, every frame received in order is acknowledged then.
+         *
+         * @param delayed true to enable delayed ACK
+         * @return this builder
+         */
+        public Builder delayedAck(final boolean delayed) {
+            delayed_ack = delayed;
+            return this;
+        }
+
+        /**
+         * How long delayed ACK may wait for further frames. Keep it well below
+         * retransmit timeout of the other end.
+         * Default is 0, one ACK per read batch.
+         *
+         * @param delayMs delay in milliseconds
+         * @return this builder
+         */
+        public Builder ackDelay(final int delayMs) {
+            ack_delay_ms = (delayMs >= 0) ? delayMs : 0;
+            return this;
+        }
+
+        /**
+         * Clock used for all timeouts of the transport, e.g. virtual clock of a link simulator
+         * advancing faster than real time. poll(long) still sleeps in real time, so transports
+         * on other clocks should be driven by poll().
+         * Default is MinClock.SYSTEM.
+         *
+         * @param clock source of time
+         * @return this builder
+         */
+        public Builder clock(final MinClock clock) {
+            if (clock == null)
+                throw new IllegalArgumentException("clock: null");
+            this.clock = clock;
+            return this;
+        }
+
+        /**
+         * Longest time frames in flight may go without ACK, counted from the first transmission
+         * of the oldest unacknowledged frame or from the last ACK moving the send window, whichever
+         * is later. Frames waiting behind a full window don't count, so a deep FIFO on a slow link
+         * does not trip it. When exceeded, the link is considered broken: transport is reset
+         * as by transportReset(), futures of all queued frames fail with AckTimeoutException.
+         * Frames are never dropped alone, that would break sequence numbers agreed with the other end.
+         * Default is 0, frames wait for ACK as long as it takes.
+         *
+         * @param timeoutMs timeout in milliseconds, 0 to disable
+         * @return this builder
+         */
+        public Builder ackTimeout(final int timeoutMs) {
+            if (timeoutMs < 0)
+                throw new IllegalArgumentException("ACK timeout: "+timeoutMs);
+            ack_timeout_ms = timeoutMs;
+            return this;
+        }
+
+        /**
+         * RTT and ACK latency histograms of MinLinkMetrics take about 17 KB per link
+         * once recorded, disable them when driving many links with MinTransportGroup.
+         * Counters are kept anyway.
+         * Enabled by default.
+         *
+         * @param enabled false to keep histograms empty
+         * @return this builder
+         */
+        public Builder latencyHistograms(final boolean enabled) {
+            latency_histograms = enabled;
+            return this;
+        }
+
+        /**
+         * Compress payloads of transport frames with given minId. Each payload is deflated
+         * against the dictionary and the previous payload of the same minId, so repetitive
+         * telemetry shrinks to a few bytes. The other end must enable the same minIds with
+         * the same dictionaries, chain of previous payloads starts again on transport reset.
+         * Payload which can not be decompressed, e.g. as dictionaries differ, resets the link.
+         * Payload of compressed minId is limited to 254 bytes, non-transport frames sent
+         * by sendFrame() are never compressed.
+         * Disabled for all minIds by default.
+         *
+         * @param minId user defined id of the frames (must be 0 - 63 range)
+         * @param dictionary sample payloads, most common content last, up to 32513 bytes, may be empty
+         * @return this builder
+         */
+        public Builder compression(final int minId, final byte[] dictionary) {
+            if (minId < 0 || minId >= 64)
+                throw new IllegalArgumentException("minId out of range: "+minId);
+            if (dictionary == null || dictionary.length > MinPayloadCodec.MAX_DICTIONARY)
+                throw new IllegalArgumentException("compression dictionary length: "
+                                                   +(dictionary == null ? "null" : dictionary.length)
+                                                   +", max "+MinPayloadCodec.MAX_DICTIONARY);
+            if (compression_dictionaries == null) {
+                compression_dictionaries = new byte[64][];
+            }
+            compression_dictionaries[minId] = dictionary.clone();
+            return this;
+        }
+
+        /**
+         * Split transport FIFO into priority levels, level 0 is the most urgent. Frame waiting
+         * to be sent is sent before all waiting frames of less urgent levels, frames already sent
+         * keep their order. Each level has its own FIFO limit, so bulk transfer filling its level
+         * never makes urgent frames fail with FifoFullException. Transport FIFO size is the sum.
+         * Default is a single level of transportFifoSize() frames.
+         *
+         * @param fifoSizes FIFO limit of each level, most urgent first, 1 - 8 levels
+         * @return this builder
+         */
+        public Builder priorityLevels(final int... fifoSizes) {
+            if (fifoSizes.length < 1 || fifoSizes.length > MAX_PRIORITY_LEVELS)
+                throw new IllegalArgumentException("priority levels: "+fifoSizes.length+", must be 1 - "
+                                                   +MAX_PRIORITY_LEVELS);
+            for (final int size : fifoSizes) {
+                if (size < 1)
+                    throw new IllegalArgumentException("priority FIFO size: "+size);
+            }
+            priority_fifo_sizes = fifoSizes.clone();
+            return this;
+        }
+
+        /**
+         * Priority of frames with given minId, unless given by the call queueing them.
+         * Default is the least urgent level.
+         *
+         * @param minId user defined id of the frames (must be 0 - 63 range)
+         * @param priority level, 0 is the most urgent
+         * @return this builder
+         */
+        public Builder priority(final int minId, final int priority) {
+            if (minId < 0 || minId >= 64)
+                throw new IllegalArgumentException("minId out of range: "+minId);
+            if (priority < 0 || priority >= MAX_PRIORITY_LEVELS)
+                throw new IllegalArgumentException("priority: "+priority);
+            priorities[minId] = priority;
+            return this;
+        }
+
+        public MinTransportConfig build() {
+            return new MinTransportConfig(this);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package pl.skifosoft.minprotocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives many transports (links) from a small number of worker threads.
+ * <p>
+ * Each link is owned by one worker, which becomes its driver thread, so once added only
+ * queueFrame() may be called on the transport from other threads.
+ * Links are assigned to the least loaded worker. Worker polls links signalled by incoming
+ * data or submitted frames first, then links with due retransmit or keep-alive deadlines,
+ * kept in one deadline heap per worker, and sleeps until the earliest deadline otherwise.
+ * <p>
+ * Worker threads are created by the given ThreadFactory, pass virtual thread factory
+ * to run workers on virtual threads where available.
+ */
+public final class MinTransportGroup {
+
+    /**
+     * Receives frames from links of the group, called on the worker thread.
+     */
+    public interface FrameListener {
+
+        /**
+         * @param transport link which received frames
+         * @param frames received frames, list is reused after return
+         */
+        void framesReceived(MinTransport transport, ArrayList<MinFrame> frames);
+
+        /**
+         * Called when polling the link throws, link is removed from the group.
+         * Default implementation does nothing.
+         *
+         * @param transport failed link
+         * @param e exception thrown by the link
+         */
+        default void linkFailed(MinTransport transport, RuntimeException e) {
+        }
+    }
+
+    private static final class Link {
+
+        final MinTransport transport;
+        final FrameListener listener;
+        final Worker worker;
+        final AtomicBoolean signalled = new AtomicBoolean(false);
+        long deadline_ns = Long.MAX_VALUE;
+        int heap_index = -1;
+        boolean removed = false;
+
+        Link(final MinTransport transport, final FrameListener listener, final Worker worker) {
+            this.transport = transport;
+            this.listener = listener;
+            this.worker = worker;
+        }
+    }
+
+    private final Worker[] workers;
+    private final int max_links;
+    private volatile boolean running = true;
+
+    /**
+     * @param threads number of worker threads
+     * @param maxLinks maximal number of links driven by a single worker
+     */
+    public MinTransportGroup(final int threads, final int maxLinks) {
+        this(threads, maxLinks, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "min-group-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param threads number of worker threads
+     * @param maxLinks maximal number of links driven by a single worker
+     * @param threadFactory creates worker threads
+     */
+    public MinTransportGroup(final int threads, final int maxLinks, final ThreadFactory threadFactory) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads: "+threads);
+        this.max_links = maxLinks;
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(maxLinks);
+        }
+        for (final Worker worker : workers) {
+            worker.thread = threadFactory.newThread(worker);
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * Add link to the group. From now on transport is driven by the group.
+     *
+     * @param transport link to drive
+     * @param listener receives frames from that link
+     * @throws IllegalStateException if every worker already drives maxLinks links
+     */
+    public void add(final MinTransport transport, final FrameListener listener) {
+
+        Worker worker = workers[0];
+        for (final Worker w : workers) {
+            if (w.link_count.get() < worker.link_count.get()) {
+                worker = w;
+            }
+        }
+        if (worker.link_count.incrementAndGet() > max_links) {
+            worker.link_count.decrementAndGet();
+            throw new IllegalStateException("group full, max links per worker: "+max_links);
+        }
+
+        final Link link = new Link(transport, listener, worker);
+        worker.control.add(new Runnable() {
+            @Override
+            public void run() {
+                link.worker.attach(link);
+            }
+        });
+        LockSupport.unpark(worker.thread);
+    }
+
+    /**
+     * Remove link from the group. Transport is no longer polled after the worker
+     * processes the request, caller may drive it again then.
+     *
+     * @param transport link to remove
+     */
+    public void remove(final MinTransport transport) {
+        for (final Worker worker : workers) {
+            worker.control.add(new Runnable() {
+                @Override
+                public void run() {
+                    worker.detach(transport);
+                }
+            });
+            LockSupport.unpark(worker.thread);
+        }
+    }
+
+    /**
+     * Stop all worker threads. Links are not reset.
+     */
+    public void shutdown() {
+        running = false;
+        for (final Worker worker : workers) {
+            LockSupport.unpark(worker.thread);
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        Thread thread;
+        final AtomicInteger link_count = new AtomicInteger(0);
+        final ConcurrentLinkedQueue<Runnable> control = new ConcurrentLinkedQueue<Runnable>();
+        // # links signalled by data or submitted frames, each queued at most once
+        final MinBoundedQueue<Link> ready;
+        // # binary min-heap of links ordered by deadline
+        Link[] heap = new Link[16];
+        int heap_size = 0;
+
+        Worker(final int maxLinks) {
+            ready = new MinBoundedQueue<Link>(2 * maxLinks); // # room for removed links still queued
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Runnable task;
+                while ((task = control.poll()) != null) {
+                    task.run();
+                }
+
+                // # links with pending I/O first
+                Link link;
+                while ((link = ready.poll()) != null) {
+                    link.signalled.set(false);
+                    if (!link.removed) {
+                        poll_link(link);
+                    }
+                }
+
+                long now_ns = System.nanoTime();
+                while (heap_size > 0 && heap[0].deadline_ns != Long.MAX_VALUE && heap[0].deadline_ns - now_ns <= 0) {
+                    poll_link(heap[0]);
+                    now_ns = System.nanoTime();
+                }
+
+                if (!ready.isEmpty() || !control.isEmpty()) {
+                    continue;
+                }
+                if (heap_size > 0 && heap[0].deadline_ns != Long.MAX_VALUE) {
+                    LockSupport.parkNanos(this, heap[0].deadline_ns - now_ns);
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        }
+
+        void attach(final Link link) {
+            link.transport.set_wakeup_listener(new Runnable() {
+                @Override
+                public void run() {
+                    signal(link);
+                }
+            });
+            link.deadline_ns = System.nanoTime();
+            heap_add(link);
+        }
+
+        void detach(final MinTransport transport) {
+            for (int i = 0; i < heap_size; i++) {
+                final Link link = heap[i];
+                if (link.transport == transport) {
+                    unlink(link);
+                    return;
+                }
+            }
+        }
+
+        private void unlink(final Link link) {
+            link.transport.set_wakeup_listener(null);
+            link.removed = true;
+            heap_remove(link);
+            link_count.decrementAndGet();
+        }
+
+        private void signal(final Link link) {
+            if (link.signalled.compareAndSet(false, true)) {
+                if (!ready.offer(link)) {
+                    // # full of removed links still queued, link is polled through its heap deadline instead
+                    link.signalled.set(false);
+                    control.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            poll_soon(link);
+                        }
+                    });
+                }
+                LockSupport.unpark(thread);
+            }
+        }
+
+        // # signal which did not fit in ready queue, deadline moved to now
+        private void poll_soon(final Link link) {
+            if (!link.removed && link.heap_index >= 0) {
+                link.deadline_ns = System.nanoTime();
+                heap_update(link);
+            }
+        }
+
+        private void poll_link(final Link link) {
+            try {
+                final ArrayList<MinFrame> frames = link.transport.poll();
+                if (!frames.isEmpty()) {
+                    link.listener.framesReceived(link.transport, frames);
+                }
+                final long wait_ns = link.transport.next_poll_wait_ns();
+                link.deadline_ns = (wait_ns == Long.MAX_VALUE) ? Long.MAX_VALUE : System.nanoTime() + wait_ns;
+                heap_update(link);
+            } catch (RuntimeException e) {
+                unlink(link);
+                link.listener.linkFailed(link.transport, e);
+            }
+        }
+
+        // # deadlines compared as differences, nanoTime may overflow
+        private boolean earlier(final Link a, final Link b) {
+            if (a.deadline_ns == Long.MAX_VALUE) {
+                return false;
+            }
+            if (b.deadline_ns == Long.MAX_VALUE) {
+                return true;
+            }
+            return a.deadline_ns - b.deadline_ns < 0;
+        }
+
+        private void heap_add(final Link link) {
+            if (heap_size == heap.length) {
+                heap = Arrays.copyOf(heap, heap_size * 2);
+            }
+            heap[heap_size] = link;
+            link.heap_index = heap_size++;
+            sift_up(link.heap_index);
+        }
+
+        private void heap_remove(final Link link) {
+            final int index = link.heap_index;
+            if (index < 0) {
+                return;
+            }
+            final Link last = heap[--heap_size];
+            heap[heap_size] = null;
+            link.heap_index = -1;
+            if (last != link) {
+                heap[index] = last;
+                last.heap_index = index;
+                heap_update(last);
+            }
+        }
+
+        private void heap_update(final Link link) {
+            sift_up(link.heap_index);
+            sift_down(link.heap_index);
+        }
+
+        private void sift_up(int index) {
+            final Link link = heap[index];
+            while (index > 0) {
+                final int parent = (index - 1) >>> 1;
+                if (!earlier(link, heap[parent])) {
+                    break;
+                }
+                heap[index] = heap[parent];
+                heap[index].heap_index = index;
+                index = parent;
+            }
+            heap[index] = link;
+            link.heap_index = index;
+        }
+
+        private void sift_down(int index) {
+            final Link link = heap[index];
+            for (;;) {
+                int child = 2 * index + 1;
+                if (child >= heap_size) {
+                    break;
+                }
+                if (child + 1 < heap_size && earlier(heap[child + 1], heap[child])) {
+                    child++;
+                }
+                if (!earlier(heap[child], link)) {
+                    break;
+                }
+                heap[index] = heap[child];
+                heap[index].heap_index = index;
+                index = child;
+            }
+            heap[index] = link;
+            link.heap_index = index;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package pl.skifosoft.minprotocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records raw bytes and protocol events of a link into a memory-mapped ring file,
+ * see MinTransport.setWireTracer(). Decode the file with MinTraceDump.
+ * <p>
+ * File is a header followed by fixed 64 byte records, each numbered, so the newest
+ * records overwrite the oldest ones and the file can be read at any time, also after crash.
+ * Writing is a few stores to mapped memory, without locks or allocation.
+ * Not thread safe, one tracer per transport, written by its driver thread.
+ */
+public final class MinWireTracer implements Closeable {
+
+    static final byte[] MAGIC = "MINTRACE".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int RECORD_SIZE = 64;
+    static final int DATA_SIZE = 40;
+    static final int MAX_RECORDS = 1 << 24;
+
+    // # header: magic, version, records, next record number, creation time
+    static final int VERSION_OFFSET = 8;
+    static final int RECORDS_OFFSET = 12;
+    static final int NEXT_RECORD_OFFSET = 16;
+    static final int CREATED_OFFSET = 24;
+
+    // # record: number (0 if empty), time, type, data length, id/control, seq, value, data
+    static final int TIME_OFFSET = 8;
+    static final int TYPE_OFFSET = 16;
+    static final int DATA_LENGTH_OFFSET = 17;
+    static final int ID_OFFSET = 18;
+    static final int SEQ_OFFSET = 19;
+    static final int VALUE_OFFSET = 20;
+    static final int DATA_OFFSET = 24;
+
+    static final byte RX_BYTES = 1;
+    static final byte TX_BYTES = 2;
+    static final byte FRAME_SENT = 3; // # value: payload length
+    static final byte FRAME_RETRANSMITTED = 4; // # value: payload length
+    static final byte FRAME_RECEIVED = 5; // # value: payload length
+    static final byte ACK_SENT = 6; // # seq: rn
+    static final byte NACK_SENT = 7; // # seq: rn, value: retransmit up to
+    static final byte ACK_RECEIVED = 8; // # seq: acknowledged up to
+    static final byte NACK_RECEIVED = 9; // # seq: acknowledged up to, value: retransmit up to
+    static final byte RESET_SENT = 10;
+    static final byte RESET_RECEIVED = 11;
+    static final byte CRC_ERRORS = 12; // # value: number of frames
+    static final byte EOF_ERRORS = 13; // # value: number of frames
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int records;
+    private long next_record = 1;
+
+    /**
+     * Create or overwrite trace file.
+     *
+     * @param file trace file
+     * @param records number of records kept, each 64 bytes, at most 2^24
+     * @throws IOException
+     */
+    public MinWireTracer(final Path file, final int records) throws IOException {
+        if (records < 1 || records > MAX_RECORDS)
+            throw new IllegalArgumentException("records: "+records+", must be 1 - "+MAX_RECORDS);
+        this.records = records;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) (records + 1) * RECORD_SIZE);
+        for (int i = 0; i < MAGIC.length; i++) {
+            buffer.put(i, MAGIC[i]);
+        }
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(RECORDS_OFFSET, records);
+        buffer.putLong(NEXT_RECORD_OFFSET, next_record);
+        buffer.putLong(CREATED_OFFSET, System.currentTimeMillis());
+    }
+
+    /**
+     * Flush records to the file and close it. Tracer must not be used by transport after that.
+     */
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    void bytes(final byte type, final long time_ns, final byte[] data, final int offset, final int length) {
+        for (int i = 0; i < length; i += DATA_SIZE) {
+            final int chunk = Math.min(DATA_SIZE, length - i);
+            final int record = begin(type, time_ns, 0, 0, length);
+            buffer.put(record + DATA_LENGTH_OFFSET, (byte) chunk);
+            buffer.position(record + DATA_OFFSET);
+            buffer.put(data, offset + i, chunk);
+            end(record);
+        }
+    }
+
+    void event(final byte type, final long time_ns, final int id_control, final int seq, final int value) {
+        end(begin(type, time_ns, id_control, seq, value));
+    }
+
+    private int begin(final byte type, final long time_ns, final int id_control, final int seq, final int value) {
+        final int record = (int) ((next_record - 1) % records + 1) * RECORD_SIZE;
+        // # number written last, partially written record is never valid
+        buffer.putLong(record, 0);
+        buffer.putLong(record + TIME_OFFSET, time_ns);
+        buffer.put(record + TYPE_OFFSET, type);
+        buffer.put(record + DATA_LENGTH_OFFSET, (byte) 0);
+        buffer.put(record + ID_OFFSET, (byte) id_control);
+        buffer.put(record + SEQ_OFFSET, (byte) seq);
+        buffer.putInt(record + VALUE_OFFSET, value);
+        return record;
+    }
+
+    private void end(final int record) {
+        buffer.putLong(record, next_record);
+        next_record++;
+        buffer.putLong(NEXT_RECORD_OFFSET, next_record);
+    }
+}
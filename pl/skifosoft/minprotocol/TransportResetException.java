@@ -0,0 +1,12 @@
+package pl.skifosoft.minprotocol;
+
+/**
+ * Frame was dropped from transport FIFO by transport reset, local or requested by the other end,
+ * before it was acknowledged. See MinTransport.sendAsync().
+ */
+public class TransportResetException extends MinException {
+
+    public TransportResetException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,62 @@
+package pl.skifosoft.minprotocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * In-memory serial link for tests, bytes written to one end are read from the other one.
+ * Thread safe, each end may be driven by a different thread.
+ */
+class LoopbackSerial implements MinSerialInterface {
+
+    private LoopbackSerial peer;
+    private byte[] buffer = new byte[4096];
+    private int length = 0;
+    private volatile Runnable listener;
+
+    static LoopbackSerial[] pair() {
+        final LoopbackSerial a = new LoopbackSerial();
+        final LoopbackSerial b = new LoopbackSerial();
+        a.peer = b;
+        b.peer = a;
+        return new LoopbackSerial[] { a, b };
+    }
+
+    @Override
+    public void serialWrite(byte[] data) {
+        serialWrite(ByteBuffer.wrap(data));
+    }
+
+    @Override
+    public void serialWrite(ByteBuffer data) {
+        peer.receive(data);
+    }
+
+    @Override
+    public synchronized byte[] serialReadAll() {
+        final byte[] ret = Arrays.copyOf(buffer, length);
+        length = 0;
+        return ret;
+    }
+
+    @Override
+    public boolean setDataListener(Runnable listener) {
+        this.listener = listener;
+        return true;
+    }
+
+    private void receive(ByteBuffer data) {
+        synchronized (this) {
+            final int n = data.remaining();
+            if (length + n > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + n));
+            }
+            data.get(buffer, length, n);
+            length += n;
+        }
+        final Runnable l = listener;
+        if (l != null) {
+            l.run();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package pl.skifosoft.minprotocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clock moved forward only by the test, so timeouts fire exactly when the test says.
+ */
+class ManualClock implements MinClock {
+
+    private long now_ns = 0;
+
+    @Override
+    public long nanoTime() {
+        return now_ns;
+    }
+
+    void advanceMs(final long ms) {
+        now_ns += TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+}
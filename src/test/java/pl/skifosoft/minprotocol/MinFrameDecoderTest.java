@@ -0,0 +1,178 @@
+package pl.skifosoft.minprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class MinFrameDecoderTest {
+
+    private static final byte TRANSPORT_ID = (byte) (0x80 | 5);
+    private static final byte PLAIN_ID = 7;
+
+    // # frames as decoded: id/control, seq, payload
+    private static final class Frames implements MinFrameDecoder.Listener {
+
+        final List<byte[]> frames = new ArrayList<byte[]>();
+
+        @Override
+        public void frameDecoded(byte idControl, int seq, byte[] payload, int length) {
+            final byte[] frame = new byte[2 + length];
+            frame[0] = idControl;
+            frame[1] = (byte) seq;
+            System.arraycopy(payload, 0, frame, 2, length);
+            frames.add(frame);
+        }
+    }
+
+    @Test
+    void roundTripsStuffedPayloads() {
+        final MinFrameEncoder encoder = new MinFrameEncoder();
+        final Frames decoded = new Frames();
+        final MinFrameDecoder decoder = new MinFrameDecoder(decoded);
+        final Random random = new Random(1);
+
+        final List<byte[]> sent = new ArrayList<byte[]>();
+        for (int length = 0; length <= MinFrameDecoder.MAX_PAYLOAD; length++) {
+            final byte[] payload = new byte[length];
+            for (int i = 0; i < length; i++) {
+                // # runs of 0xaa of every length, stuffed after each pair
+                payload[i] = (random.nextInt(3) > 0) ? MinFrameDecoder.HEADER_BYTE : (byte) random.nextInt();
+            }
+            final byte id_control = (length % 2 == 0) ? TRANSPORT_ID : PLAIN_ID;
+            final int seq = (id_control == TRANSPORT_ID) ? 0xaa : 0;
+            decoder.decode(encoder.encode(id_control, seq, payload));
+            sent.add(frame(id_control, seq, payload));
+        }
+
+        assertEquals(sent.size(), decoded.frames.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertArrayEquals(sent.get(i), decoded.frames.get(i), "frame "+i);
+        }
+        assertEquals(0, decoder.getCrcErrors());
+        assertEquals(0, decoder.getMissingEofErrors());
+    }
+
+    @Test
+    void stuffsEveryPairOfHeaderBytes() {
+        final byte[] payload = new byte[6];
+        Arrays.fill(payload, MinFrameDecoder.HEADER_BYTE);
+        final byte[] wire = new MinFrameEncoder().encode(PLAIN_ID, 0, payload);
+
+        // # after the header no three 0xaa in a row, each pair is followed by stuff byte
+        int run = 0;
+        int stuffed = 0;
+        for (int i = 3; i < wire.length; i++) {
+            if (run == 2) {
+                assertEquals(MinFrameDecoder.STUFF_BYTE, wire[i], "byte "+i);
+                stuffed++;
+                run = 0;
+            } else {
+                run = (wire[i] == MinFrameDecoder.HEADER_BYTE) ? run + 1 : 0;
+            }
+        }
+        assertEquals(3, stuffed);
+
+        final Frames decoded = new Frames();
+        new MinFrameDecoder(decoded).decode(wire);
+        assertArrayEquals(frame(PLAIN_ID, 0, payload), decoded.frames.get(0));
+    }
+
+    @Test
+    void decodesFramesSplitAcrossReads() {
+        final MinFrameEncoder encoder = new MinFrameEncoder();
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final List<byte[]> sent = new ArrayList<byte[]>();
+        final Random random = new Random(2);
+        for (int n = 0; n < 50; n++) {
+            final byte[] payload = new byte[random.nextInt(MinFrameDecoder.MAX_PAYLOAD + 1)];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = (random.nextBoolean()) ? MinFrameDecoder.HEADER_BYTE : (byte) random.nextInt();
+            }
+            stream.writeBytes(encoder.encode(TRANSPORT_ID, n, payload));
+            sent.add(frame(TRANSPORT_ID, n, payload));
+        }
+        final byte[] wire = stream.toByteArray();
+
+        // # byte by byte, random chunks of an array, random chunks of a direct buffer
+        final Frames single = new Frames();
+        final MinFrameDecoder single_decoder = new MinFrameDecoder(single);
+        for (int i = 0; i < wire.length; i++) {
+            single_decoder.decode(wire, i, 1);
+        }
+        final Frames chunked = new Frames();
+        final MinFrameDecoder chunked_decoder = new MinFrameDecoder(chunked);
+        final Frames direct = new Frames();
+        final MinFrameDecoder direct_decoder = new MinFrameDecoder(direct);
+        for (int i = 0; i < wire.length;) {
+            final int length = Math.min(wire.length - i, 1 + random.nextInt(300));
+            chunked_decoder.decode(wire, i, length);
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+            buffer.put(wire, i, length).flip();
+            direct_decoder.decode(buffer);
+            assertEquals(buffer.limit(), buffer.position());
+            i += length;
+        }
+
+        for (final Frames decoded : Arrays.asList(single, chunked, direct)) {
+            assertEquals(sent.size(), decoded.frames.size());
+            for (int i = 0; i < sent.size(); i++) {
+                assertArrayEquals(sent.get(i), decoded.frames.get(i), "frame "+i);
+            }
+        }
+    }
+
+    @Test
+    void dropsFrameWithBadCrcAndKeepsDecoding() {
+        final MinFrameEncoder encoder = new MinFrameEncoder();
+        final Frames decoded = new Frames();
+        final MinFrameDecoder decoder = new MinFrameDecoder(decoded);
+
+        final byte[] corrupted = encoder.encode(TRANSPORT_ID, 1, new byte[] { 1, 2, 3, 4 });
+        corrupted[7] ^= 0x10; // # second payload byte
+        decoder.decode(corrupted);
+        assertEquals(1, decoder.getCrcErrors());
+        assertEquals(0, decoded.frames.size());
+
+        final byte[] missing_eof = encoder.encode(TRANSPORT_ID, 2, new byte[] { 5 });
+        decoder.decode(missing_eof, 0, missing_eof.length - 1);
+        decoder.decode(new byte[] { 0 });
+        assertEquals(1, decoder.getMissingEofErrors());
+        assertEquals(0, decoded.frames.size());
+
+        decoder.decode(encoder.encode(TRANSPORT_ID, 3, new byte[] { 6, 7 }));
+        assertEquals(1, decoded.frames.size());
+        assertArrayEquals(frame(TRANSPORT_ID, 3, new byte[] { 6, 7 }), decoded.frames.get(0));
+    }
+
+    @Test
+    void encodesIntoBufferAtItsPosition() {
+        final MinFrameEncoder encoder = new MinFrameEncoder();
+        final byte[] payload = { 1, (byte) 0xaa, (byte) 0xaa, 2 };
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(2 * MinFrameEncoder.MAX_FRAME_SIZE);
+        buffer.put((byte) 0);
+        final int written = encoder.encode(buffer, TRANSPORT_ID, 9, payload, 0, payload.length);
+        assertEquals(1 + written, buffer.position());
+
+        final byte[] expected = encoder.encode(TRANSPORT_ID, 9, payload);
+        final byte[] actual = new byte[written];
+        buffer.flip().position(1);
+        buffer.get(actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    private static byte[] frame(final byte id_control, final int seq, final byte[] payload) {
+        final byte[] frame = new byte[2 + payload.length];
+        frame[0] = id_control;
+        frame[1] = (byte) seq;
+        System.arraycopy(payload, 0, frame, 2, payload.length);
+        return frame;
+    }
+}
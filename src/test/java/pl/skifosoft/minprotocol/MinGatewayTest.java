@@ -0,0 +1,150 @@
+package pl.skifosoft.minprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class MinGatewayTest {
+
+    private static final int GOOD_LINK = 1;
+    private static final int BAD_LINK = 2;
+
+    // # serial interface throwing once failing is set, as a port unplugged
+    private static final class FailingSerial implements MinSerialInterface {
+
+        final MinSerialInterface serial;
+        volatile boolean failing = false;
+
+        FailingSerial(final MinSerialInterface serial) {
+            this.serial = serial;
+        }
+
+        @Override
+        public void serialWrite(byte[] data) {
+            serial.serialWrite(data);
+        }
+
+        @Override
+        public void serialWrite(ByteBuffer data) {
+            serial.serialWrite(data);
+        }
+
+        @Override
+        public byte[] serialReadAll() {
+            if (failing)
+                throw new IllegalStateException("port gone");
+            return serial.serialReadAll();
+        }
+
+        @Override
+        public boolean setDataListener(Runnable listener) {
+            return serial.setDataListener(listener);
+        }
+    }
+
+    @Test
+    void failedLinkDoesNotStopOtherLinks() throws Exception {
+        final LoopbackSerial[] good = LoopbackSerial.pair();
+        final LoopbackSerial[] bad = LoopbackSerial.pair();
+        final FailingSerial failing = new FailingSerial(bad[0]);
+        final MinTransport good_device = new MinTransport(good[1]);
+        final MinTransport bad_device = new MinTransport(bad[1]);
+
+        final BlockingQueue<Integer> failed = new ArrayBlockingQueue<Integer>(4);
+        final MinGateway gateway = new MinGateway(64 * 1024, new MinGateway.LinkListener() {
+            @Override
+            public void linkFailed(int linkId, MinTransport transport, RuntimeException e) {
+                failed.add(linkId);
+            }
+        });
+        final ServerSocketChannel server = ServerSocketChannel.open()
+            .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        gateway.listen(server);
+        gateway.addLink(GOOD_LINK, new MinTransport(good[0]));
+        gateway.addLink(BAD_LINK, new MinTransport(failing));
+        final Thread thread = new Thread(gateway, "gateway");
+        thread.start();
+
+        final int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        try (Socket bad_client = new Socket(InetAddress.getLoopbackAddress(), port);
+             Socket good_client = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            bad_client.setSoTimeout(5000);
+            good_client.setSoTimeout(5000);
+
+            // # bad client uses the bad link
+            send(bad_client, BAD_LINK, 0x80 | 4, new byte[] { 1 });
+            assertArrayEquals(new byte[] { 1 }, await_frame(bad_device, 4));
+
+            failing.failing = true;
+            bad_device.queueFrame(5, new byte[] { 2 }); // # wakes up the gateway, next poll throws
+            bad_device.poll();
+            assertEquals(BAD_LINK, failed.poll(5, TimeUnit.SECONDS));
+            assertEquals(-1, read_until_closed(bad_client.getInputStream()));
+
+            // # good link still serves both ways
+            send(good_client, GOOD_LINK, 0x80 | 6, new byte[] { 3, 4 });
+            assertArrayEquals(new byte[] { 3, 4 }, await_frame(good_device, 6));
+            good_device.queueFrame(7, new byte[] { 5 });
+            good_device.poll();
+            final DataInputStream in = new DataInputStream(good_client.getInputStream());
+            assertEquals(GOOD_LINK, in.readUnsignedByte());
+            assertEquals(0x80 | 7, in.readUnsignedByte());
+            assertEquals(1, in.readUnsignedByte());
+            assertEquals(5, in.readUnsignedByte());
+            assertEquals(1, gateway.getClientCount());
+            assertTrue(thread.isAlive());
+        } finally {
+            gateway.close();
+            thread.join(5000);
+            server.close();
+        }
+    }
+
+    private static void send(final Socket client, final int link, final int id_control, final byte[] payload)
+        throws IOException {
+        final OutputStream out = client.getOutputStream();
+        out.write(link);
+        out.write(id_control);
+        out.write(payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    // # drives the device end until a frame of minId arrives
+    private static byte[] await_frame(final MinTransport device, final int minId) {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            for (final MinFrame frame : device.poll(10)) {
+                if (frame.getId() == minId) {
+                    final byte[] payload = new byte[frame.getLength()];
+                    System.arraycopy(frame.getPayload(), 0, payload, 0, payload.length);
+                    return payload;
+                }
+            }
+        }
+        throw new AssertionError("no frame "+minId);
+    }
+
+    // # skips records still in flight
+    private static int read_until_closed(final InputStream in) throws IOException {
+        int b;
+        while ((b = in.read()) >= 0) {
+        }
+        return b;
+    }
+}
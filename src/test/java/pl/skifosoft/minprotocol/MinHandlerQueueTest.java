@@ -0,0 +1,189 @@
+package pl.skifosoft.minprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class MinHandlerQueueTest {
+
+    private static final int HANDLED_ID = 5;
+    private static final int FRAMES = 20;
+
+    @Test
+    void saturatedExecutorDoesNotDuplicateFrames() throws Exception {
+        final LoopbackSerial[] link = LoopbackSerial.pair();
+        final MinTransport sender = new MinTransport(link[0]);
+        final MinTransport receiver = new MinTransport(link[1]);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final ThreadPoolExecutor executor = saturated(release);
+
+        final List<Integer> handled = new ArrayList<Integer>();
+        receiver.setFrameHandler(HANDLED_ID, recorder(handled), executor, 64);
+
+        try {
+            for (int i = 0; i < FRAMES; i++) {
+                sender.queueFrame(HANDLED_ID, new byte[] { (byte) i });
+            }
+            // # frames accepted while executor rejects, sender sees them acknowledged
+            exchange(sender, receiver, 500);
+            release.countDown();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (System.nanoTime() < deadline && handled_count(handled) < FRAMES) {
+                sender.poll(1);
+                receiver.poll(1);
+            }
+            // # late duplicates would arrive by now
+            exchange(sender, receiver, 200);
+
+            final List<Integer> expected = new ArrayList<Integer>();
+            for (int i = 0; i < FRAMES; i++) {
+                expected.add(i);
+            }
+            synchronized (handled) {
+                assertEquals(expected, handled);
+            }
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void framesLeftByReplacedHandlerGoToNewOne() throws Exception {
+        final LoopbackSerial[] link = LoopbackSerial.pair();
+        final MinTransport sender = new MinTransport(link[0]);
+        final MinTransport receiver = new MinTransport(link[1]);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ThreadPoolExecutor saturated = saturated(release);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        final List<Integer> replaced = new ArrayList<Integer>();
+        final List<Integer> handled = new ArrayList<Integer>();
+        receiver.setFrameHandler(HANDLED_ID, recorder(replaced), saturated, 64);
+        try {
+            // # accepted and acknowledged, left queued as executor rejects the drain task
+            for (int i = 0; i < FRAMES; i++) {
+                sender.queueFrame(HANDLED_ID, new byte[] { (byte) i });
+            }
+            exchange(sender, receiver, 200);
+
+            // # queue of the new handler takes fewer frames than were left, more frames follow
+            receiver.setFrameHandler(HANDLED_ID, recorder(handled), executor, 4);
+            for (int i = FRAMES; i < 2 * FRAMES; i++) {
+                sender.queueFrame(HANDLED_ID, new byte[] { (byte) i });
+            }
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (System.nanoTime() < deadline && handled_count(handled) < 2 * FRAMES) {
+                sender.poll(1);
+                receiver.poll(1);
+            }
+            // # released executor must not run the replaced handler
+            release.countDown();
+            exchange(sender, receiver, 100);
+
+            final List<Integer> expected = new ArrayList<Integer>();
+            for (int i = 0; i < 2 * FRAMES; i++) {
+                expected.add(i);
+            }
+            synchronized (handled) {
+                assertEquals(expected, handled);
+            }
+            assertEquals(0, handled_count(replaced));
+        } finally {
+            release.countDown();
+            saturated.shutdown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void framesLeftByRemovedHandlerAreReturnedByPoll() throws Exception {
+        final LoopbackSerial[] link = LoopbackSerial.pair();
+        final MinTransport sender = new MinTransport(link[0]);
+        final MinTransport receiver = new MinTransport(link[1]);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ThreadPoolExecutor saturated = saturated(release);
+
+        final List<Integer> replaced = new ArrayList<Integer>();
+        receiver.setFrameHandler(HANDLED_ID, recorder(replaced), saturated, 64);
+        try {
+            for (int i = 0; i < FRAMES; i++) {
+                sender.queueFrame(HANDLED_ID, new byte[] { (byte) i });
+            }
+            exchange(sender, receiver, 200);
+
+            receiver.setFrameHandler(HANDLED_ID, null);
+            final List<Integer> received = new ArrayList<Integer>();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (System.nanoTime() < deadline && received.size() < FRAMES) {
+                sender.poll(1);
+                for (final MinFrame frame : receiver.poll(1)) {
+                    received.add(frame.getPayload()[0] & 0xff);
+                }
+            }
+
+            final List<Integer> expected = new ArrayList<Integer>();
+            for (int i = 0; i < FRAMES; i++) {
+                expected.add(i);
+            }
+            assertEquals(expected, received);
+            assertEquals(FRAMES, receiver.getMetrics().getFramesReceived());
+            assertEquals(0, handled_count(replaced));
+        } finally {
+            release.countDown();
+            saturated.shutdown();
+        }
+    }
+
+    // # single busy thread and no queue, every task is rejected until released
+    private static ThreadPoolExecutor saturated(final CountDownLatch release) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                                                                   new SynchronousQueue<Runnable>());
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        return executor;
+    }
+
+    private static MinFrameHandler recorder(final List<Integer> handled) {
+        return new MinFrameHandler() {
+            @Override
+            public void frameReceived(MinFrame frame) {
+                synchronized (handled) {
+                    handled.add(frame.getPayload()[0] & 0xff);
+                }
+            }
+        };
+    }
+
+    private static void exchange(final MinTransport sender, final MinTransport receiver, final long ms) {
+        final long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms);
+        while (System.nanoTime() < until) {
+            sender.poll(1);
+            receiver.poll(1);
+        }
+    }
+
+    private static int handled_count(final List<Integer> handled) {
+        synchronized (handled) {
+            return handled.size();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package pl.skifosoft.minprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class MinHistogramTest {
+
+    @Test
+    void keepsThreePercentFromOneMicrosecondToAnHour() {
+        final long hour = TimeUnit.HOURS.toNanos(1);
+        for (long value = 1000; value <= hour; value += value / 7 + 1) {
+            final MinHistogram histogram = new MinHistogram();
+            histogram.record(value);
+            histogram.record(value * 2); // # max above, so percentile is the bucket bound
+            final long p50 = histogram.getValueAtPercentile(50);
+            assertTrue(p50 >= value, "p50 "+p50+" below "+value);
+            assertTrue(p50 - value <= value * 0.032, "p50 "+p50+" too far from "+value);
+        }
+    }
+
+    @Test
+    void keepsThirtyTwoNanosecondsBelowOneMicrosecond() {
+        for (long value = 0; value < 1000; value += 7) {
+            final MinHistogram histogram = new MinHistogram();
+            histogram.record(value);
+            histogram.record(10_000);
+            final long p50 = histogram.getValueAtPercentile(50);
+            assertTrue(p50 >= value && p50 - value < 32, "p50 "+p50+" for "+value);
+        }
+    }
+
+    @Test
+    void maxIsExact() {
+        final MinHistogram histogram = new MinHistogram();
+        histogram.record(1234);
+        histogram.record(TimeUnit.HOURS.toNanos(5));
+        assertEquals(TimeUnit.HOURS.toNanos(5), histogram.getMax());
+        assertEquals(TimeUnit.HOURS.toNanos(5), histogram.getValueAtPercentile(100));
+    }
+}
@@ -0,0 +1,174 @@
+package pl.skifosoft.minprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+class MinMessageSenderTest {
+
+    private static final int MESSAGE_ID = 10;
+    private static final int FRAGMENTS = 20;
+
+    @Test
+    void messageFailsWhenMiddleFragmentIsDropped() throws Exception {
+        final LoopbackSerial[] link = LoopbackSerial.pair();
+        final MinTransportConfig config = MinTransportConfig.builder().transportFifoSize(2).maxWindowSize(2).build();
+        final MinTransport sender = new MinTransport(link[0], config);
+        final MinTransport receiver = new MinTransport(link[1], config);
+
+        final AtomicBoolean reassembled = new AtomicBoolean(false);
+        final MinMessageReassembler reassembler = new MinMessageReassembler(MESSAGE_ID,
+            ByteBuffer.allocate(FRAGMENTS * 254), new MinMessageReassembler.Listener() {
+                @Override
+                public void messageReceived(int minId, ByteBuffer message) {
+                    reassembled.set(true);
+                }
+            });
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicBoolean stop = new AtomicBoolean(false);
+
+        // # reset drops the fragments in sender FIFO while the sender waits for room, later ones go through
+        final Thread driver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean reset = false;
+                while (!stop.get()) {
+                    sender.poll(1);
+                    for (final MinFrame frame : receiver.poll()) {
+                        reassembler.offer(frame);
+                        received.incrementAndGet();
+                    }
+                    if (!reset && received.get() >= 2 && sender.getMetrics().getTransportFifoDepth() > 0) {
+                        sender.transportReset();
+                        reset = true;
+                    }
+                }
+            }
+        });
+        driver.start();
+        try {
+            final CompletableFuture<Void> message = new MinMessageSender(sender, 5000)
+                .send(MESSAGE_ID, ByteBuffer.allocate(FRAGMENTS * 250));
+
+            final ExecutionException failure = assertThrows(ExecutionException.class, new Executable() {
+                @Override
+                public void execute() throws Throwable {
+                    message.get(10, TimeUnit.SECONDS);
+                }
+            });
+            assertInstanceOf(TransportResetException.class, failure.getCause());
+            assertTrue(received.get() < FRAGMENTS, "fragments after the dropped one were all queued");
+            assertFalse(reassembled.get());
+        } finally {
+            stop.set(true);
+            driver.join();
+        }
+    }
+
+    @Test
+    void messageFailsWhenFifoStaysFullMidMessage() throws Exception {
+        final LoopbackSerial[] link = LoopbackSerial.pair();
+        final MinTransportConfig config = MinTransportConfig.builder().transportFifoSize(4).build();
+        final MinTransport sender = new MinTransport(link[0], config);
+        final MinTransport receiver = new MinTransport(link[1], config);
+        final MinMessageSender messages = new MinMessageSender(sender, 10);
+
+        // # nobody polls, fifth fragment waits for room in vain
+        final CompletableFuture<Void> message = messages.send(MESSAGE_ID, ByteBuffer.allocate(FRAGMENTS * 250));
+        assertInstanceOf(FifoFullException.class, cause(message));
+
+        // # fragments already queued go out, the next message is reassembled in their place
+        final List<Integer> lengths = new ArrayList<Integer>();
+        final MinMessageReassembler reassembler = reassembler(lengths);
+        final CompletableFuture<Void> next = deliver(sender, receiver, reassembler, messages, 300);
+        next.get(10, TimeUnit.SECONDS);
+        assertEquals(List.of(300), lengths);
+        assertEquals(1, reassembler.getDroppedMessages());
+        assertEquals(0, sender.getMetrics().getTransportFifoDepth());
+    }
+
+    @Test
+    void messageFailsWhenInterruptedMidMessage() throws Exception {
+        final LoopbackSerial[] link = LoopbackSerial.pair();
+        final MinTransport sender = new MinTransport(link[0]);
+        final MinTransport receiver = new MinTransport(link[1]);
+        final MinMessageSender messages = new MinMessageSender(sender, 5000);
+
+        // # interrupted sender stops at the first fragment which has to wait for room
+        final CompletableFuture<Void> message;
+        Thread.currentThread().interrupt();
+        try {
+            message = messages.send(MESSAGE_ID, ByteBuffer.allocate(2000 * 250));
+        } finally {
+            assertTrue(Thread.interrupted(), "interrupt status lost");
+        }
+        assertInstanceOf(InterruptedException.class, cause(message));
+
+        final List<Integer> lengths = new ArrayList<Integer>();
+        final MinMessageReassembler reassembler = reassembler(lengths);
+        deliver(sender, receiver, reassembler, messages, 300).get(10, TimeUnit.SECONDS);
+        assertEquals(List.of(300), lengths);
+        assertEquals(1, reassembler.getDroppedMessages());
+    }
+
+    private static MinMessageReassembler reassembler(final List<Integer> lengths) throws MinIdException {
+        return new MinMessageReassembler(MESSAGE_ID, ByteBuffer.allocate(FRAGMENTS * 254),
+                                         new MinMessageReassembler.Listener() {
+                                             @Override
+                                             public void messageReceived(int minId, ByteBuffer message) {
+                                                 lengths.add(message.remaining());
+                                             }
+                                         });
+    }
+
+    // # sends the next message from another thread while this one drives both ends
+    private static CompletableFuture<Void> deliver(final MinTransport sender, final MinTransport receiver,
+                                                   final MinMessageReassembler reassembler,
+                                                   final MinMessageSender messages, final int length) throws Exception {
+        final CompletableFuture<CompletableFuture<Void>> queued = new CompletableFuture<CompletableFuture<Void>>();
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queued.complete(messages.send(MESSAGE_ID, ByteBuffer.allocate(length)));
+                } catch (Exception e) {
+                    queued.completeExceptionally(e);
+                }
+            }
+        });
+        thread.start();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while ((!queued.isDone() || !queued.get().isDone()) && System.nanoTime() < deadline) {
+            sender.poll(1);
+            for (final MinFrame frame : receiver.poll()) {
+                reassembler.offer(frame);
+            }
+        }
+        thread.join();
+        return queued.get();
+    }
+
+    private static Throwable cause(final CompletableFuture<Void> message) {
+        final ExecutionException failure = assertThrows(ExecutionException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                message.get(10, TimeUnit.SECONDS);
+            }
+        });
+        return failure.getCause();
+    }
+}
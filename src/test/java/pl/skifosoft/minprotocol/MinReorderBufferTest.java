@@ -0,0 +1,57 @@
+package pl.skifosoft.minprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class MinReorderBufferTest {
+
+    @Test
+    void earliestWrapsAroundSequenceSpace() {
+        final MinReorderBuffer buffer = new MinReorderBuffer();
+        assertEquals(-1, buffer.earliest(0));
+        buffer.put(3, frame(3));
+        buffer.put(200, frame(200));
+        buffer.put(255, frame(255));
+
+        assertEquals(200, buffer.earliest(100));
+        assertEquals(255, buffer.earliest(201));
+        assertEquals(255, buffer.earliest(255));
+        assertEquals(3, buffer.earliest(0));
+        // # no bit before the end of the space, wraps to 3
+        buffer.take(255);
+        assertEquals(3, buffer.earliest(201));
+        // # every word boundary
+        for (int from = 4; from <= 200; from++) {
+            assertEquals(200, buffer.earliest(from), "from "+from);
+        }
+    }
+
+    @Test
+    void putReplacesAndTakeRemoves() {
+        final MinReorderBuffer buffer = new MinReorderBuffer();
+        final MinFrame first = frame(64);
+        final MinFrame second = frame(64);
+        buffer.put(64, first);
+        buffer.put(64, second);
+        assertEquals(1, buffer.size());
+        assertSame(second, buffer.peek(64));
+        assertSame(second, buffer.take(64));
+        assertNull(buffer.take(64));
+        assertTrue(buffer.isEmpty());
+
+        for (int seq = 0; seq < 256; seq += 3) {
+            buffer.put(seq, frame(seq));
+        }
+        buffer.clear();
+        assertTrue(buffer.isEmpty());
+        assertEquals(-1, buffer.earliest(0));
+    }
+
+    private static MinFrame frame(final int seq) {
+        return new MinFrame((byte) 1, new byte[] { (byte) seq }, seq, true, false);
+    }
+}
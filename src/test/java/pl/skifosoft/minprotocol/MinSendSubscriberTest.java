@@ -0,0 +1,131 @@
+package pl.skifosoft.minprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+class MinSendSubscriberTest {
+
+    private static final int MIN_ID = 4;
+    private static final int PAYLOADS = 200;
+
+    @Test
+    void completesWhenAllFramesAreAcknowledged() throws Exception {
+        final LoopbackSerial[] link = LoopbackSerial.pair();
+        final MinTransport sender = new MinTransport(link[0]);
+        final MinTransport receiver = new MinTransport(link[1]);
+        final List<Integer> received = new ArrayList<Integer>();
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final Thread driver = drive(sender, receiver, received, stop);
+
+        try (SubmissionPublisher<byte[]> publisher = new SubmissionPublisher<byte[]>()) {
+            final MinSendSubscriber subscriber = sender.sendSubscriber(MIN_ID, 8);
+            publisher.subscribe(subscriber);
+            for (int i = 0; i < PAYLOADS; i++) {
+                publisher.submit(new byte[] { (byte) i });
+            }
+            publisher.close();
+
+            subscriber.getCompletion().get(10, TimeUnit.SECONDS);
+            assertEquals(0, sender.getMetrics().getTransportFifoDepth());
+        } finally {
+            stop.set(true);
+            driver.join();
+        }
+        final List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < PAYLOADS; i++) {
+            expected.add(i & 0xff);
+        }
+        assertEquals(expected, received);
+    }
+
+    @Test
+    void failsWithUpstreamError() throws Exception {
+        final MinTransport sender = new MinTransport(new ScriptedSerial());
+        final MinSendSubscriber subscriber = sender.sendSubscriber(MIN_ID, 8);
+        final IllegalStateException error = new IllegalStateException("source failed");
+        try (SubmissionPublisher<byte[]> publisher = new SubmissionPublisher<byte[]>()) {
+            publisher.subscribe(subscriber);
+            publisher.closeExceptionally(error);
+        }
+        assertSame(error, cause(subscriber.getCompletion()));
+    }
+
+    @Test
+    void failsFastWhenFifoIsFilledByOthers() throws Exception {
+        final MinTransport sender = new MinTransport(new ScriptedSerial(),
+                                                     MinTransportConfig.builder().transportFifoSize(4).build());
+        for (int i = 0; i < 4; i++) {
+            sender.queueFrame(MIN_ID + 1, new byte[] { (byte) i });
+        }
+        final MinSendSubscriber subscriber = sender.sendSubscriber(MIN_ID, 2);
+        try (SubmissionPublisher<byte[]> publisher = new SubmissionPublisher<byte[]>()) {
+            publisher.subscribe(subscriber);
+            publisher.submit(new byte[] { 1 });
+            // # not blocked waiting for room, upstream learns about it and is cancelled
+            assertInstanceOf(FifoFullException.class, cause(subscriber.getCompletion()));
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (publisher.hasSubscribers() && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertFalse(publisher.hasSubscribers());
+        }
+    }
+
+    @Test
+    void failsWhenFrameIsDroppedByReset() throws Exception {
+        final ScriptedSerial serial = new ScriptedSerial();
+        final MinTransport sender = new MinTransport(serial);
+        final MinSendSubscriber subscriber = sender.sendSubscriber(MIN_ID, 8);
+        try (SubmissionPublisher<byte[]> publisher = new SubmissionPublisher<byte[]>()) {
+            publisher.subscribe(subscriber);
+            publisher.submit(new byte[] { 1 });
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (sender.getMetrics().getFramesSent() == 0 && System.nanoTime() < deadline) {
+                sender.poll();
+            }
+            sender.transportReset();
+            assertInstanceOf(TransportResetException.class, cause(subscriber.getCompletion()));
+        }
+    }
+
+    private static Throwable cause(final CompletableFuture<Void> completion) {
+        final ExecutionException failure = assertThrows(ExecutionException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                completion.get(5, TimeUnit.SECONDS);
+            }
+        });
+        return failure.getCause();
+    }
+
+    private static Thread drive(final MinTransport sender, final MinTransport receiver, final List<Integer> received,
+                                final AtomicBoolean stop) {
+        final Thread driver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!stop.get()) {
+                    sender.poll(1);
+                    for (final MinFrame frame : receiver.poll()) {
+                        received.add(frame.getPayload()[0] & 0xff);
+                    }
+                }
+            }
+        }, "driver");
+        driver.start();
+        return driver;
+    }
+}
@@ -0,0 +1,307 @@
+package pl.skifosoft.minprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+class MinTransportTest {
+
+    private static final int MIN_ID = 3;
+    private static final byte ID_CONTROL = (byte) (0x80 | MIN_ID);
+
+    @Test
+    void sendsNackOnSequenceGap() {
+        final ScriptedSerial serial = new ScriptedSerial();
+        final MinTransport receiver = new MinTransport(serial, config(new ManualClock()).build());
+
+        serial.receive(ID_CONTROL, 0, new byte[] { 0 });
+        serial.receive(ID_CONTROL, 2, new byte[] { 2 });
+        assertEquals(List.of(0), payloads(receiver.poll()));
+
+        final List<ScriptedSerial.Frame> written = serial.takeWritten();
+        assertEquals(2, written.size(), written.toString());
+        assertTrue(written.get(0).isAck() && !written.get(0).isNack());
+        assertEquals(1, written.get(0).seq);
+        assertTrue(written.get(1).isNack());
+        assertEquals(1, written.get(1).seq); // # acknowledges frame 0
+        assertEquals(2, written.get(1).payload[0]); // # requests frame 1, the one before 2
+
+        // # NACK is outstanding, frames after the gap don't repeat it
+        serial.receive(ID_CONTROL, 3, new byte[] { 3 });
+        assertEquals(List.of(), payloads(receiver.poll()));
+        assertEquals(0, serial.takeWritten().size());
+
+        serial.receive(ID_CONTROL, 1, new byte[] { 1 });
+        assertEquals(List.of(1, 2, 3), payloads(receiver.poll()));
+        final List<ScriptedSerial.Frame> ack = serial.takeWritten();
+        assertEquals(1, ack.size(), ack.toString());
+        assertTrue(ack.get(0).isAck() && !ack.get(0).isNack());
+        assertEquals(4, ack.get(0).seq);
+        assertEquals(1, receiver.getMetrics().getNacksSent());
+    }
+
+    @Test
+    void retransmitsNackedFramesOnce() throws Exception {
+        final ScriptedSerial serial = new ScriptedSerial();
+        final MinTransport sender = new MinTransport(serial, config(new ManualClock()).build());
+
+        for (int i = 0; i < 4; i++) {
+            sender.queueFrame(MIN_ID, new byte[] { (byte) i });
+        }
+        sender.poll();
+        assertEquals(List.of(0, 1, 2, 3), seqs(serial.takeWritten()));
+
+        // # frame 0 acknowledged, frame 1 requested, 2 and 3 still in flight
+        serial.receive(ScriptedSerial.ACK, 1, new byte[] { 2 });
+        sender.poll();
+        final List<ScriptedSerial.Frame> retransmitted = serial.takeWritten();
+        assertEquals(List.of(1), seqs(retransmitted));
+        assertArrayEquals(new byte[] { 1 }, retransmitted.get(0).payload);
+
+        // # no timer is due, nothing else goes out until the clock moves
+        sender.poll();
+        assertEquals(List.of(), seqs(serial.takeWritten()));
+        assertEquals(1, sender.getMetrics().getNacksReceived());
+        assertEquals(1, sender.getMetrics().getFramesRetransmitted());
+    }
+
+    @Test
+    void recoversLostFrameByNackBeforeRetransmitTimeout() throws Exception {
+        // # clock stands still, only NACK can bring the lost frame back
+        final ManualClock clock = new ManualClock();
+        final ScriptedSerial sender_serial = new ScriptedSerial();
+        final ScriptedSerial receiver_serial = new ScriptedSerial();
+        final MinTransport sender = new MinTransport(sender_serial, config(clock).build());
+        final MinTransport receiver = new MinTransport(receiver_serial, config(clock).build());
+
+        for (int i = 0; i < 6; i++) {
+            sender.queueFrame(MIN_ID, new byte[] { (byte) i });
+        }
+        final List<Integer> received = new ArrayList<Integer>();
+        int sent_seq_2 = 0;
+        boolean dropped = false;
+        for (int round = 0; round < 10; round++) {
+            sender.poll();
+            for (final ScriptedSerial.Frame frame : sender_serial.takeWritten()) {
+                if (frame.isTransport() && frame.seq == 2) {
+                    sent_seq_2++;
+                    if (!dropped) {
+                        dropped = true;
+                        continue;
+                    }
+                }
+                receiver_serial.receive(frame);
+            }
+            received.addAll(payloads(receiver.poll()));
+            for (final ScriptedSerial.Frame frame : receiver_serial.takeWritten()) {
+                sender_serial.receive(frame);
+            }
+        }
+        assertEquals(List.of(0, 1, 2, 3, 4, 5), received);
+        assertEquals(2, sent_seq_2);
+        assertEquals(0, sender.getMetrics().getTransportFifoDepth());
+    }
+
+    @Test
+    void deliversStashedFramesInOrderAcrossSequenceWrap() {
+        final ScriptedSerial serial = new ScriptedSerial();
+        final MinTransport receiver = new MinTransport(serial, config(new ManualClock()).build());
+
+        // # rn moves to 250, just before the wrap
+        final List<Integer> expected = new ArrayList<Integer>();
+        for (int seq = 0; seq < 250; seq++) {
+            serial.receive(ID_CONTROL, seq, new byte[] { (byte) seq });
+            expected.add(seq);
+        }
+        assertEquals(expected, payloads(receiver.poll()));
+        serial.takeWritten();
+
+        // # 250 is lost, the rest of the window arrives backwards across 255 -> 0
+        final int[] late = { 5, 4, 3, 2, 1, 0, 255, 254, 253, 252, 251 };
+        for (final int seq : late) {
+            serial.receive(ID_CONTROL, seq, new byte[] { (byte) seq });
+        }
+        assertEquals(List.of(), payloads(receiver.poll()));
+        final List<ScriptedSerial.Frame> nack = serial.takeWritten();
+        assertEquals(1, nack.size(), nack.toString());
+        assertTrue(nack.get(0).isNack());
+        assertEquals(250, nack.get(0).seq);
+        assertEquals(5, nack.get(0).payload[0] & 0xff); // # first frame to arrive after the gap
+
+        // # gap filled, whole run delivered at once, in sequence order
+        serial.receive(ID_CONTROL, 250, new byte[] { (byte) 250 });
+        assertEquals(List.of(250, 251, 252, 253, 254, 255, 0, 1, 2, 3, 4, 5), payloads(receiver.poll()));
+        final List<ScriptedSerial.Frame> ack = serial.takeWritten();
+        assertEquals(1, ack.size(), ack.toString());
+        assertEquals(6, ack.get(0).seq);
+
+        // # already delivered frames are duplicates, not delivered again
+        serial.receive(ID_CONTROL, 2, new byte[] { 2 });
+        assertEquals(List.of(), payloads(receiver.poll()));
+        assertEquals(1, receiver.getMetrics().getDuplicateFrames());
+    }
+
+    @Test
+    void dropsFramesBeyondReceiveWindow() {
+        final ScriptedSerial serial = new ScriptedSerial();
+        final MinTransport receiver = new MinTransport(serial, config(new ManualClock()).build());
+
+        serial.receive(ID_CONTROL, 16, new byte[] { 16 }); // # rx window is 16, 0 - 15
+        serial.receive(ID_CONTROL, 15, new byte[] { 15 });
+        receiver.poll();
+        for (int seq = 0; seq < 15; seq++) {
+            serial.receive(ID_CONTROL, seq, new byte[] { (byte) seq });
+        }
+        final List<Integer> expected = new ArrayList<Integer>();
+        for (int seq = 0; seq < 16; seq++) {
+            expected.add(seq);
+        }
+        assertEquals(expected, payloads(receiver.poll()));
+        assertEquals(1, receiver.getMetrics().getSequenceMismatchDrops());
+    }
+
+    @Test
+    void delaysCumulativeAck() {
+        final ManualClock clock = new ManualClock();
+        final ScriptedSerial serial = new ScriptedSerial();
+        final MinTransport receiver = new MinTransport(serial, config(clock).delayedAck(true).ackDelay(20).build());
+
+        serial.receive(ID_CONTROL, 0, new byte[] { 0 });
+        assertEquals(List.of(0), payloads(receiver.poll()));
+        assertEquals(0, serial.takeWritten().size());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(20), receiver.next_poll_wait_ns());
+
+        // # later frames don't move the deadline of the first one
+        clock.advanceMs(10);
+        serial.receive(ID_CONTROL, 1, new byte[] { 1 });
+        serial.receive(ID_CONTROL, 2, new byte[] { 2 });
+        assertEquals(List.of(1, 2), payloads(receiver.poll()));
+        assertEquals(0, serial.takeWritten().size());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(10), receiver.next_poll_wait_ns());
+
+        clock.advanceMs(9);
+        receiver.poll();
+        assertEquals(0, serial.takeWritten().size());
+
+        clock.advanceMs(1);
+        receiver.poll();
+        final List<ScriptedSerial.Frame> ack = serial.takeWritten();
+        assertEquals(1, ack.size(), ack.toString());
+        assertTrue(ack.get(0).isAck() && !ack.get(0).isNack());
+        assertEquals(3, ack.get(0).seq); // # all three at once
+        assertEquals(1, receiver.getMetrics().getAcksSent());
+
+        // # gap is reported at once, NACK acknowledges the frame waiting for delayed ACK
+        clock.advanceMs(1);
+        serial.receive(ID_CONTROL, 3, new byte[] { 3 });
+        serial.receive(ID_CONTROL, 5, new byte[] { 5 });
+        assertEquals(List.of(3), payloads(receiver.poll()));
+        final List<ScriptedSerial.Frame> nack = serial.takeWritten();
+        assertEquals(1, nack.size(), nack.toString());
+        assertTrue(nack.get(0).isNack());
+        assertEquals(4, nack.get(0).seq);
+        clock.advanceMs(20);
+        receiver.poll();
+        assertEquals(0, serial.takeWritten().size());
+    }
+
+    @Test
+    void resetsLinkWhenPayloadCanNotBeDecompressed() {
+        final ScriptedSerial serial = new ScriptedSerial();
+        final MinTransport receiver = new MinTransport(serial, config(new ManualClock())
+                                                       .compression(MIN_ID, new byte[16]).build());
+
+        serial.receive(ID_CONTROL, 0, new byte[] { 0, 10 }); // # stored
+        assertEquals(List.of(10), payloads(receiver.poll()));
+        serial.takeWritten();
+
+        // # deflated without dictionary check, previous payloads can't be trusted
+        serial.receive(ID_CONTROL, 1, new byte[] { 1, 0x63, 0, 0 });
+        serial.receive(ID_CONTROL, 2, new byte[] { 0, 12 });
+        assertEquals(List.of(), payloads(receiver.poll()));
+        final List<ScriptedSerial.Frame> reset = serial.takeWritten();
+        assertEquals(ScriptedSerial.RESET, reset.get(0).idControl, reset.toString());
+        assertEquals(1, receiver.getMetrics().getDecompressionErrors());
+
+        // # sequence starts again from 0, frame 2 of the old one is not delivered
+        serial.receive(ID_CONTROL, 0, new byte[] { 0, 13 });
+        assertEquals(List.of(13), payloads(receiver.poll()));
+    }
+
+    @Test
+    void detectsMismatchedCompressionDictionaries() throws Exception {
+        final byte[] record = "temperature=21.5;humidity=40;pressure=1013".getBytes("US-ASCII");
+        final byte[] other = "voltage=12.1;current=0.5;state=charging;fault=none".getBytes("US-ASCII");
+        final LoopbackSerial[] link = LoopbackSerial.pair();
+        final MinTransport sender = new MinTransport(link[0], MinTransportConfig.builder()
+                                                     .compression(MIN_ID, record).build());
+        final MinTransport receiver = new MinTransport(link[1], MinTransportConfig.builder()
+                                                       .compression(MIN_ID, other).build());
+        final List<byte[]> received = new ArrayList<byte[]>();
+
+        // # same record deflates to a few bytes against the sender dictionary
+        final CompletableFuture<Void> deflated = sender.sendAsync(MIN_ID, record);
+        exchange(sender, receiver, received);
+        final ExecutionException failure = assertThrows(ExecutionException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                deflated.get(0, TimeUnit.SECONDS);
+            }
+        });
+        assertInstanceOf(TransportResetException.class, failure.getCause());
+        assertEquals(0, received.size());
+        assertEquals(1, receiver.getMetrics().getDecompressionErrors());
+        assertEquals(1, sender.getMetrics().getResetsReceived());
+
+        // # stored payloads need no dictionary and still get through
+        final byte[] small = { 1, 2, 3 };
+        final CompletableFuture<Void> stored = sender.sendAsync(MIN_ID, small);
+        exchange(sender, receiver, received);
+        stored.get(0, TimeUnit.SECONDS);
+        assertEquals(1, received.size());
+        assertArrayEquals(small, received.get(0));
+    }
+
+    private static void exchange(final MinTransport sender, final MinTransport receiver, final List<byte[]> received) {
+        for (int round = 0; round < 10; round++) {
+            sender.poll();
+            for (final MinFrame frame : receiver.poll()) {
+                received.add(Arrays.copyOf(frame.getPayload(), frame.getLength()));
+            }
+        }
+    }
+
+    private static MinTransportConfig.Builder config(final MinClock clock) {
+        return MinTransportConfig.builder().clock(clock).maxWindowSize(8).rxWindowSize(16);
+    }
+
+    private static List<Integer> payloads(final List<MinFrame> frames) {
+        final List<Integer> ret = new ArrayList<Integer>();
+        for (final MinFrame frame : frames) {
+            assertEquals(MIN_ID, frame.getId());
+            ret.add(frame.getPayload()[0] & 0xff);
+        }
+        return ret;
+    }
+
+    private static List<Integer> seqs(final List<ScriptedSerial.Frame> frames) {
+        final List<Integer> ret = new ArrayList<Integer>();
+        for (final ScriptedSerial.Frame frame : frames) {
+            assertTrue(frame.isTransport(), frame.toString());
+            ret.add(frame.seq);
+        }
+        return ret;
+    }
+}
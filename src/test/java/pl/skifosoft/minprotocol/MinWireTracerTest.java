@@ -0,0 +1,98 @@
+package pl.skifosoft.minprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MinWireTracerTest {
+
+    private static final long WRITE_MS = 5;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void stampsRecordsWhenWrittenNotAtStartOfPoll() throws Exception {
+        final ManualClock clock = new ManualClock();
+        // # every write blocks for WRITE_MS, as a full UART buffer does
+        final MinSerialInterface serial = new MinSerialInterface() {
+            @Override
+            public void serialWrite(byte[] data) {
+                clock.advanceMs(WRITE_MS);
+            }
+
+            @Override
+            public void serialWrite(ByteBuffer data) {
+                data.position(data.limit());
+                clock.advanceMs(WRITE_MS);
+            }
+
+            @Override
+            public byte[] serialReadAll() {
+                return new byte[0];
+            }
+        };
+        final MinTransport transport = new MinTransport(serial, MinTransportConfig.builder().clock(clock)
+                                                        .maxWindowSize(32).build());
+        final Path file = dir.resolve("link.trace");
+        final MinWireTracer tracer = new MinWireTracer(file, 1024);
+        transport.setWireTracer(tracer);
+
+        // # 20 full frames don't fit in one 4 KB write, poll writes twice
+        for (int i = 0; i < 20; i++) {
+            transport.queueFrame(1, new byte[255]);
+        }
+        transport.poll();
+        transport.sendFrame(2, new byte[] { 1 });
+        tracer.close();
+
+        final List<long[]> sent = new ArrayList<long[]>(); // # type, time
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        for (int number = 1;; number++) {
+            final int record = number * MinWireTracer.RECORD_SIZE;
+            if (record >= buffer.limit() || buffer.getLong(record) != number) {
+                break;
+            }
+            final byte type = buffer.get(record + MinWireTracer.TYPE_OFFSET);
+            if (type == MinWireTracer.FRAME_SENT || type == MinWireTracer.TX_BYTES) {
+                sent.add(new long[] { type, buffer.getLong(record + MinWireTracer.TIME_OFFSET) });
+            }
+        }
+
+        // # first write, frames staged after it, second write, then sendFrame() after both
+        final long write_ns = TimeUnit.MILLISECONDS.toNanos(WRITE_MS);
+        int frames_before_first_write = 0;
+        int writes = 0;
+        long last_ns = -1;
+        long last_type = 0;
+        for (final long[] record : sent) {
+            assertTrue(record[1] >= last_ns, "time goes back");
+            last_ns = record[1];
+            if (record[0] == MinWireTracer.TX_BYTES) {
+                // # one write takes a run of records, 40 bytes each
+                if (last_type != MinWireTracer.TX_BYTES) {
+                    writes++;
+                }
+                assertEquals((writes - 1) * write_ns, record[1]);
+            } else if (writes == 0) {
+                assertEquals(0, record[1]);
+                frames_before_first_write++;
+            } else {
+                assertEquals(writes * write_ns, record[1]);
+            }
+            last_type = record[0];
+        }
+        assertEquals(3, writes);
+        assertTrue(frames_before_first_write > 0 && frames_before_first_write < 20);
+        assertEquals(3 * write_ns, clock.nanoTime());
+    }
+}
@@ -0,0 +1,104 @@
+package pl.skifosoft.minprotocol;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Serial interface played by the test: frames given to receive() are read by the transport,
+ * frames the transport writes are decoded and kept until taken. Not thread safe.
+ */
+class ScriptedSerial implements MinSerialInterface {
+
+    static final byte ACK = (byte) 0xff;
+    static final byte RESET = (byte) 0xfe;
+
+    /**
+     * Frame written by the transport.
+     */
+    static final class Frame {
+
+        final byte idControl;
+        final int seq;
+        final byte[] payload;
+
+        Frame(final byte idControl, final int seq, final byte[] payload) {
+            this.idControl = idControl;
+            this.seq = seq;
+            this.payload = payload;
+        }
+
+        boolean isAck() {
+            return idControl == ACK;
+        }
+
+        // # ACK requesting retransmits, payload holds sequence number up to which frames are missing
+        boolean isNack() {
+            return idControl == ACK && payload.length > 0 && (payload[0] & 0xff) != seq;
+        }
+
+        boolean isTransport() {
+            return (idControl & 0x80) != 0 && idControl != ACK && idControl != RESET;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%02x seq %d %s", idControl & 0xff, seq, Arrays.toString(payload));
+        }
+    }
+
+    private final MinFrameEncoder encoder = new MinFrameEncoder();
+    private final ByteArrayOutputStream input = new ByteArrayOutputStream();
+    private final List<Frame> written = new ArrayList<Frame>();
+    private final MinFrameDecoder decoder = new MinFrameDecoder(new MinFrameDecoder.Listener() {
+        @Override
+        public void frameDecoded(byte idControl, int seq, byte[] payload, int length) {
+            written.add(new Frame(idControl, seq, Arrays.copyOf(payload, length)));
+        }
+    });
+
+    /**
+     * Frame to be read by the transport at its next poll.
+     */
+    void receive(final byte idControl, final int seq, final byte[] payload) {
+        input.writeBytes(encoder.encode(idControl, seq, payload));
+    }
+
+    void receive(final Frame frame) {
+        receive(frame.idControl, frame.seq, frame.payload);
+    }
+
+    /**
+     * @return frames written since last call
+     */
+    List<Frame> takeWritten() {
+        final List<Frame> ret = new ArrayList<Frame>(written);
+        written.clear();
+        return ret;
+    }
+
+    @Override
+    public void serialWrite(byte[] data) {
+        decoder.decode(data);
+    }
+
+    @Override
+    public void serialWrite(ByteBuffer data) {
+        decoder.decode(data);
+    }
+
+    @Override
+    public byte[] serialReadAll() {
+        final byte[] ret = input.toByteArray();
+        input.reset();
+        return ret;
+    }
+
+    // # frames are fed between polls, so transport waits only for its own deadlines
+    @Override
+    public boolean setDataListener(Runnable listener) {
+        return true;
+    }
+}